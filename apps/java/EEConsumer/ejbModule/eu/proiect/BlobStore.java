@@ -0,0 +1,97 @@
+package eu.proiect;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Content-addressed directory for image blobs (STORAGE_BACKEND=file).
+ * 
+ * A blob lives at BLOB_STORE_DIR/ab/cd/abcd...: its SHA-256, split in two levels so no
+ * directory grows too big. The images row keeps only this relative path, the hash and
+ * the size. The same content is stored once, however many rows point to it.
+ */
+public class BlobStore {
+	static final String STORAGE_BACKEND = "db";
+	static final String BLOB_STORE_DIR = "/data/blobs";
+	
+	
+	public static boolean isEnabled() {
+		return "file".equalsIgnoreCase(System.getenv().getOrDefault("STORAGE_BACKEND", STORAGE_BACKEND));
+	}
+	
+	public static Path getRoot() {
+		return Paths.get(System.getenv().getOrDefault("BLOB_STORE_DIR", BLOB_STORE_DIR));
+	}
+	
+	public static String relativePath(String hash) {
+		return hash.substring(0, 2) + "/" + hash.substring(2, 4) + "/" + hash;
+	}
+	
+	/**
+	 * Stores the bytes under their hash, returns the relative path.
+	 */
+	public static String put(String hash, byte[] data) throws IOException {
+		Path target = getRoot().resolve(relativePath(hash));
+		if (Files.exists(target)) {
+			return relativePath(hash);
+		}
+		
+		Path temp = createTemp(target);
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+				OutputStream out = Channels.newOutputStream(channel)) {
+			out.write(data);
+			channel.force(false);
+		}
+		
+		publish(temp, target);
+		return relativePath(hash);
+	}
+	
+	/**
+	 * Stores a file under its hash, returns the relative path. The source is copied, the
+	 * caller still owns (and deletes) it.
+	 */
+	public static String put(String hash, Path source) throws IOException {
+		Path target = getRoot().resolve(relativePath(hash));
+		if (Files.exists(target)) {
+			return relativePath(hash);
+		}
+		
+		Path temp = createTemp(target);
+		try (InputStream in = Files.newInputStream(source);
+				FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+				OutputStream out = Channels.newOutputStream(channel)) {
+			in.transferTo(out);
+			channel.force(false);
+		}
+		
+		publish(temp, target);
+		return relativePath(hash);
+	}
+	
+	
+	private static Path createTemp(Path target) throws IOException {
+		Files.createDirectories(target.getParent());
+		return Files.createTempFile(target.getParent(), ".upload-", ".tmp");
+	}
+	
+	// the blob appears under its name only when it is complete
+	private static void publish(Path temp, Path target) throws IOException {
+		try {
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+}
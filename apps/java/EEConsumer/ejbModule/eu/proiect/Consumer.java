@@ -13,40 +13,47 @@ import java.sql.SQLException;
 import java.util.Properties;
 
 
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
 import javax.jms.JMSException;         
+import javax.jms.MessageConsumer;
 import javax.jms.MessageListener;     
+import javax.jms.Queue;
 import javax.jms.Session;              
 import javax.jms.Topic;               
-import javax.jms.TopicConnection;     
-import javax.jms.TopicConnectionFactory; 
-import javax.jms.TopicSession;         
-import javax.jms.TopicSubscriber;     
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.ActiveMQPrefetchPolicy;
 
 
 public class Consumer {
 
 private static final String topicName = "image.topic";
+private static final String queueName = "image.queue";
 
 static final String BROKER_URL_DEFAULT = "tcp://localhost:61616";
 static final String BROKER_USER_DEFAULT = "admin";
 static final String BROKER_PASSWORD_DEFAULT = "admin";
 
+// "queue": competing consumers, every image goes to one consumer container
+// "topic": the old broadcast, every consumer container processes every image
+static final String DELIVERY_MODE_DEFAULT = "queue";
+// how many messages the broker pushes ahead to one session, 1 is fair for big images
+static final String CONSUMER_PREFETCH_DEFAULT = "1";
+
 public static void main(String[] args) {
 	Context jndiContext = null;
-	TopicConnectionFactory topicConnectionFactory = null;
-	TopicConnection topicConnection = null;
-	
-	TopicSession topicSession = null;
-	Topic topic = null;
-	
-	TopicSubscriber topicSubscriber = null;
-	ImageListener topicListener = null;
+	ConnectionFactory connectionFactory = null;
+	Connection connection = null;
 	
-	System.out.println("Topic name = "+topicName);
-		
     String brokerUrl = System.getenv().getOrDefault("BROKER_URL", BROKER_URL_DEFAULT);
     String brokerUser = System.getenv().getOrDefault("BROKER_USER", BROKER_USER_DEFAULT);
     String brokerPass = System.getenv().getOrDefault("BROKER_PASSWORD", BROKER_PASSWORD_DEFAULT);
+    String deliveryMode = System.getenv().getOrDefault("DELIVERY_MODE", DELIVERY_MODE_DEFAULT);
+    int prefetch = Integer.parseInt(System.getenv().getOrDefault("CONSUMER_PREFETCH", CONSUMER_PREFETCH_DEFAULT));
+    
+    boolean queueMode = !"topic".equalsIgnoreCase(deliveryMode);
+    System.out.println((queueMode ? "Queue name = " + queueName : "Topic name = " + topicName));
     
 	try {
 		
@@ -56,29 +63,59 @@ public static void main(String[] args) {
 
 		jndiContext = new InitialContext(props);
 		
-		topicConnectionFactory = (TopicConnectionFactory)jndiContext.lookup("ConnectionFactory");	
+		connectionFactory = (ConnectionFactory)jndiContext.lookup("ConnectionFactory");
+		
+		if (connectionFactory instanceof ActiveMQConnectionFactory) {
+			ActiveMQPrefetchPolicy prefetchPolicy = ((ActiveMQConnectionFactory) connectionFactory).getPrefetchPolicy();
+			prefetchPolicy.setQueuePrefetch(prefetch);
+			prefetchPolicy.setTopicPrefetch(prefetch);
+			
+			// completion events are persistent but the consumer does not wait for the broker receipt
+			((ActiveMQConnectionFactory) connectionFactory).setUseAsyncSend(true);
+		}
+		
+		Metrics.serve();
+		
+		// database is safe? a database that is down is reported, the consumer starts anyway
+		try {
+			db.init();
+		} catch (SQLException e) {
+			System.err.println("Database not reachable at startup: " + e.getMessage());
+		}
+		DbWriter.start();
 		
-		// database is safe? 
-		db.checkConnection();
+		// resolve the RMI workers once, tiles reuse these stubs
+		RMIStubCache.warmUp();
+		WorkerLoad.start();
 	} catch(NamingException ne) {
 		ne.printStackTrace();
 		System.exit(2);
-	} catch (SQLException e) {
-		// TODO Auto-generated catch block
-		e.printStackTrace();
 	}
 		
 	try {
-		topicConnection = topicConnectionFactory.createTopicConnection(brokerUser, brokerPass);
-		topicSession = topicConnection.createTopicSession(false, Session.AUTO_ACKNOWLEDGE);
-		topic = topicSession.createTopic(topicName);
-		topicSubscriber = topicSession.createSubscriber(topic);
+		connection = connectionFactory.createConnection(brokerUser, brokerPass);
+		Notification.init(connection);
+		
+		if (queueMode) {
+			// one session per concurrent image, each message is acknowledged after it is saved
+			for (int i = 0; i < ProcessingExecutor.getMessageConcurrency(); i++) {
+				Session session = connection.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+				Queue queue = session.createQueue(queueName);
+				MessageConsumer queueConsumer = session.createConsumer(queue);
+				
+				queueConsumer.setMessageListener(new ImageListener(session));
+			}
+		} else {
+			Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			Topic topic = session.createTopic(topicName);
+			MessageConsumer topicSubscriber = session.createConsumer(topic);
 			
-		topicListener = new ImageListener();
-		topicSubscriber.setMessageListener((MessageListener) topicListener);
-		topicConnection.start();
+			topicSubscriber.setMessageListener((MessageListener) new ImageListener());
+		}
+		connection.start();
 			
-		System.out.println("Consumer RMI - Started");
+		System.out.println("Consumer RMI - Started (" + (queueMode ? "queue" : "topic") + ", prefetch " + prefetch + "), processing " 
+				+ ProcessingExecutor.getMessageConcurrency() + " images at a time");
 		Thread.currentThread().join();
 		
 		
@@ -88,9 +125,11 @@ public static void main(String[] args) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		} finally {
-			if(topicConnection != null) {
+			ProcessingExecutor.shutdown();
+			
+			if(connection != null) {
 				try {
-					topicConnection.close();
+					connection.close();
 				} catch (JMSException e) {
 					e.printStackTrace();
 				}
@@ -0,0 +1,162 @@
+package eu.proiect;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind stage in front of MySQL.
+ * 
+ * Processing threads only queue their row and get a future with the id. One writer thread
+ * takes up to DB_FLUSH_SIZE rows (or what arrived within DB_FLUSH_INTERVAL_MS) and inserts
+ * them in a single transaction, so several images share one commit. When that transaction
+ * fails the rows are inserted again one by one, so a bad row only fails its own image.
+ * The queue is bounded (DB_WRITE_QUEUE_SIZE): when MySQL falls behind, the producers wait.
+ */
+public class DbWriter {
+	static final String DB_WRITE_QUEUE_SIZE = "32";
+	static final String DB_FLUSH_SIZE = "8";
+	static final String DB_FLUSH_INTERVAL_MS = "20";
+	
+	private static final int flushSize = 
+			Integer.parseInt(System.getenv().getOrDefault("DB_FLUSH_SIZE", DB_FLUSH_SIZE));
+	private static final long flushIntervalMs = 
+			Long.parseLong(System.getenv().getOrDefault("DB_FLUSH_INTERVAL_MS", DB_FLUSH_INTERVAL_MS));
+	
+	private static final BlockingQueue<PendingInsert> queue = 
+			new ArrayBlockingQueue<>(Integer.parseInt(System.getenv().getOrDefault("DB_WRITE_QUEUE_SIZE", DB_WRITE_QUEUE_SIZE)));
+	
+	private static Thread writerThread;
+	
+	
+	static class PendingInsert {
+		final byte[] imageOriginal;
+		// false: the original is already in the row of another level, only its size is kept
+		final boolean storeOriginal;
+		final Path imageZoomed;
+		final String typeImage;
+		final String contentHash;
+		final String zoomedHash;
+		final double zoom;
+		final String filter;
+		final CompletableFuture<Long> result = new CompletableFuture<>();
+		
+		PendingInsert(byte[] imageOriginal, boolean storeOriginal, Path imageZoomed, String typeImage, String contentHash, 
+				String zoomedHash, double zoom, String filter) {
+			this.imageOriginal = imageOriginal;
+			this.storeOriginal = storeOriginal;
+			this.imageZoomed = imageZoomed;
+			this.typeImage = typeImage;
+			this.contentHash = contentHash;
+			this.zoomedHash = zoomedHash;
+			this.zoom = zoom;
+			this.filter = filter;
+		}
+	}
+	
+	
+	/**
+	 * Queues one row. The future completes with the exact id of this row once its
+	 * transaction is committed, or exceptionally when the transaction failed.
+	 */
+	public static CompletableFuture<Long> submit(byte[] imageOriginal, boolean storeOriginal, Path imageZoomed, String typeImage, 
+			String contentHash, String zoomedHash, double zoom, String filter) throws InterruptedException {
+		start();
+		
+		PendingInsert pending = new PendingInsert(imageOriginal, storeOriginal, imageZoomed, typeImage, contentHash, zoomedHash, 
+				zoom, filter);
+		queue.put(pending);
+		
+		return pending.result;
+	}
+	
+	public static synchronized void start() {
+		if (writerThread != null) {
+			return;
+		}
+		
+		Metrics.gauge("db_write_queue", queue::size);
+		
+		writerThread = new Thread(DbWriter::run, "db-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+		
+		System.out.println("DB writer started: flush " + flushSize + " rows or " + flushIntervalMs + " ms");
+	}
+	
+	
+	private static void run() {
+		List<PendingInsert> batch = new ArrayList<>(flushSize);
+		
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				batch.add(queue.take());
+				
+				// wait a little for more rows to share the commit
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+				while (batch.size() < flushSize) {
+					long left = deadline - System.nanoTime();
+					PendingInsert next = left > 0 ? queue.poll(left, TimeUnit.NANOSECONDS) : queue.poll();
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+				
+				flush(batch);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+	
+	private static void flush(List<PendingInsert> batch) {
+		long start = System.nanoTime();
+		
+		try {
+			long[] ids = db.insertAll(batch);
+			Metrics.observe("db_commit", start, null);
+			Metrics.increment("db_batches_total", "outcome=\"ok\"");
+			
+			for (int i = 0; i < batch.size(); i++) {
+				batch.get(i).result.complete(ids[i]);
+			}
+			System.out.println("DB writer committed " + batch.size() + " rows");
+		} catch (Exception e) {
+			e.printStackTrace();
+			Metrics.increment("db_batches_total", "outcome=\"error\"");
+			
+			if (batch.size() == 1) {
+				batch.get(0).result.completeExceptionally(e);
+			} else {
+				flushEach(batch);
+			}
+		}
+	}
+	
+	// after a failed group commit: every row in its own transaction
+	private static void flushEach(List<PendingInsert> batch) {
+		int failed = 0;
+		
+		for (PendingInsert pending : batch) {
+			try {
+				pending.result.complete(db.insertAll(List.of(pending))[0]);
+				Metrics.increment("db_rows_retried_total", "outcome=\"ok\"");
+			} catch (Exception e) {
+				System.err.println("DB writer could not insert the row of " + pending.contentHash + " (zoom " + pending.zoom + "): " 
+						+ e.getMessage());
+				Metrics.increment("db_rows_retried_total", "outcome=\"error\"");
+				pending.result.completeExceptionally(e);
+				failed++;
+			}
+		}
+		
+		System.out.println("DB writer retried " + batch.size() + " rows one by one, " + failed + " failed");
+	}
+}
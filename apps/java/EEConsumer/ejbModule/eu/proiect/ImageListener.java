@@ -2,27 +2,49 @@ package eu.proiect;
 
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
 import java.sql.SQLException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.imageio.ImageIO;
 import javax.jms.BytesMessage;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageListener;
+import javax.jms.Session;
 import javax.jms.TextMessage;
 
 class ImageListener implements MessageListener {
-	static final String RMI_SERVER_PORT_ZOOM = "1099";
-	static final String RMI_SERVER_IP_ZOOM = "localhost";
+	// "raster" sends packed RGB pixels to the workers, "bmp" keeps the old encoded tiles
+	static final String RMI_TRANSPORT = "raster";
+	static final String COMBINE_PREFIX = "zoomed-";
+	// how long a tile waits for a worker when all of them answer busy
+	static final String RMI_BUSY_MAX_WAIT_MS = "60000";
 	
-	static final String RMI_SERVER_PORT_ZOOM2 = "1100";
-	static final String RMI_SERVER_IP_ZOOM2 = "localhost";
+	// set in queue mode: the image is processed on the session thread and acknowledged
+	// only after it is saved, a failure gives the message back to the broker
+	private final Session session;
+	
+	private static final AtomicInteger imagesInFlight = new AtomicInteger();
+	
+	static {
+		Metrics.gauge("consumer_images_in_flight", imagesInFlight::get);
+	}
+	
+	public ImageListener() {
+		this(null);
+	}
+	
+	public ImageListener(Session session) {
+		this.session = session;
+	}
 	
     @Override
     public void onMessage(Message message) {
@@ -38,18 +60,60 @@ class ImageListener implements MessageListener {
                     throw new JMSException("The message is big to be processed.");
                 }
      
+                // the upload arrives as a large message, it is read in chunks and hashed in the same pass
+                long readStart = System.nanoTime();
                 imageData = new byte[(int) length];
-                byteMsg.readBytes(imageData);
+                String contentHash = Utils.readBody(byteMsg, imageData);
                 
-                double zoom = byteMsg.getDoubleProperty("zoom");
+                // several zoom levels can be asked for the same upload ("zooms" = "0.5,2,4"),
+                // older publishers only set "zoom"
+                double[] zooms = Utils.parseZooms(byteMsg.getStringProperty("zooms"), byteMsg.getDoubleProperty("zoom"));
                 		
                 
                 String uploadId = byteMsg.getStringProperty("uploadId");
                 
+                // read by Javalin from the image header, 0 when the publisher does not send them
+                int headerWidth = byteMsg.propertyExists("width") ? byteMsg.getIntProperty("width") : 0;
+                int headerHeight = byteMsg.propertyExists("height") ? byteMsg.getIntProperty("height") : 0;
+                // resampling filter chosen by the client, null = the worker default
+                String filter = byteMsg.getStringProperty("filter");
+                if (headerWidth > 0 && headerHeight > 0) {
+                	System.out.println("Header: " + byteMsg.getStringProperty("format") + " " + headerWidth + "x" + headerHeight 
+                			+ " " + byteMsg.getIntProperty("bitDepth") + " bpp, " 
+                			+ RMIWorkerRegistry.computeTileCount(headerWidth, headerHeight) + " tiles planned");
+                }
+                
+                Metrics.observe("receive", readStart, uploadId);
+                Metrics.addBytes("receive", length);
+                // publish (Javalin clock) -> delivered here, clocks of the containers are close enough
+                if (message.getJMSTimestamp() > 0) {
+                	Metrics.observeSeconds("broker_queue", Math.max(0, System.currentTimeMillis() - message.getJMSTimestamp()) / 1000.0, uploadId);
+                }
+                
                 System.out.println("I received a binary message with the size of " + length + " bytes");
-                System.out.println("Zoom params received: (" + zoom + ")");
+                System.out.println("Zoom params received: " + Arrays.toString(zooms) + ", content hash: " + contentHash);
+
+                if (session != null) {
+                	try {
+                		processImage(imageData, contentHash, zooms, filter, uploadId, headerWidth, headerHeight);
+                		message.acknowledge();
+                	} catch (Exception e) {
+                		e.printStackTrace();
+                		System.err.println("Image " + uploadId + " failed, the message will be redelivered");
+                		session.recover();
+                	}
+                	return;
+                }
 
-                processImageViaRMI(imageData, zoom, uploadId);
+                // the body is read on the session thread, the heavy work goes to the shared pool
+                final byte[] imageBytes = imageData;
+                ProcessingExecutor.submitMessage(() -> {
+                	try {
+                		processImage(imageBytes, contentHash, zooms, filter, uploadId, headerWidth, headerHeight);
+                	} catch (Exception e) {
+                		e.printStackTrace();
+                	}
+                });
                 
                 
                
@@ -67,17 +131,94 @@ class ImageListener implements MessageListener {
     }
 
 
-    private void processImageViaRMI(byte[] imageBytes, double zoomFactor, String uploadId) throws IOException, SQLException {
+    /**
+     * The same bytes at the same zoom give the same result, so a known level is answered
+     * with the existing row and only the missing levels go through the RMI pipeline.
+     */
+    private void processImage(byte[] imageBytes, String contentHash, double[] zooms, String filter, String uploadId, 
+    		int headerWidth, int headerHeight) throws IOException, SQLException {
+    	long start = System.nanoTime();
+    	imagesInFlight.incrementAndGet();
+    	
+    	try {
+    		processLevels(imageBytes, contentHash, zooms, filter, uploadId, headerWidth, headerHeight);
+    	} finally {
+    		imagesInFlight.decrementAndGet();
+    		Metrics.observe("image_total", start, uploadId);
+    	}
+    }
+    
+    private void processLevels(byte[] imageBytes, String contentHash, double[] zooms, String filter, String uploadId, 
+    		int headerWidth, int headerHeight) throws IOException, SQLException {
+    	List<Double> missing = new ArrayList<>();
+    	
+    	for (double zoom : zooms) {
+	    	Long existingId = ResultCache.lookup(contentHash, zoom, filter);
+	    	
+	    	if (existingId != null) {
+	    		System.out.println("Image already processed at zoom " + zoom + ", reusing row ID: " + existingId);
+	    		Notification.notifyApp(uploadId, existingId, zoom);
+	    	} else {
+	    		missing.add(zoom);
+	    	}
+    	}
+    	
+    	if (!missing.isEmpty()) {
+    		processImageViaRMI(imageBytes, contentHash, missing.stream().mapToDouble(Double::doubleValue).toArray(), filter, uploadId, 
+    				headerWidth, headerHeight);
+    	}
+    }
+    
+    
+    /**
+     * One zoom level of the output: its size, where every tile goes and the file it is
+     * stitched into.
+     * Tile boundaries are rounded on the whole image, so the output is as tall as a single
+     * resize would make it and every tile knows its rows before it is sent.
+     */
+    private static class ZoomLevel {
+    	final double zoom;
+    	final int outWidth;
+    	final int[] outY;
+    	final Path file;
+    	StreamingBmpWriter writer;
+    	
+    	ZoomLevel(double zoom, int imgWidth, int[] tileY, String typeImage) throws IOException {
+    		int tileCount = tileY.length - 1;
+    		
+    		this.zoom = zoom;
+    		this.outWidth = (int) Math.round(imgWidth * zoom);
+    		this.outY = new int[tileCount + 1];
+    		for (int i = 0; i <= tileCount; i++) {
+    			outY[i] = (int) Math.round(tileY[i] * zoom);
+    		}
+    		this.file = Files.createTempFile(COMBINE_PREFIX, "." + typeImage);
+    	}
+    	
+    	int getHeight() {
+    		return outY[outY.length - 1];
+    	}
+    }
+    
+    
+    private void processImageViaRMI(byte[] imageBytes, String contentHash, double[] zooms, String filter, String uploadId, 
+    		int headerWidth, int headerHeight) throws IOException, SQLException {
     	System.out.println("Loading image of " + imageBytes.length + " bytes for processing via RMI");
         
 
         
+        List<ZoomLevel> levels = new ArrayList<>(zooms.length);
+        
         try {
         	// is not necessary to check if that is a image or the format is BMP, we already know 
         	// that project accept only bmp format, so the consumer will check  those data for us
         	// we also know the zoom will be between 0.1 and 10
         	
+        	// decoded once for every zoom level, at full size: the workers' filters do all the
+        	// shrinking (point-sampled decoding would alias)
+        	long decodeStart = System.nanoTime();
         	BufferedImage originalImage = ImageIO.read(new ByteArrayInputStream(imageBytes));
+        	Metrics.observe("decode", decodeStart, uploadId);
         	
         	if (originalImage == null) {
         		throw new IOException("Failed to read image");
@@ -88,105 +229,365 @@ class ImageListener implements MessageListener {
         	
         	int imgWidth = originalImage.getWidth();
         	int imgHeight = originalImage.getHeight();
-        	int halfWidth = imgWidth / 2;
+        	
+        	// Javalin checked its limits on the header size, the pixels must be that size
+        	if (headerWidth > 0 && (imgWidth != headerWidth || imgHeight != headerHeight)) {
+        		throw new IOException("Decoded size " + imgWidth + "x" + imgHeight + " does not match the header " 
+        				+ headerWidth + "x" + headerHeight);
+        	}
+        	
+        	// every tile must come out at least one row high on the smallest level, and
+        	// small enough on the largest one
+        	double minZoom = Arrays.stream(zooms).min().orElse(1);
+        	int tileCount = RMIWorkerRegistry.computeTileCount(imgWidth, imgHeight, (int) Math.ceil(1 / minZoom), zooms);
+        	int halo = haloRows(filter, minZoom);
+        	// the worker halves by 2x2 blocks from the first row it gets: a tile starting on a
+        	// multiple of the block pairs the same rows as a single resize would
+        	int align = Integer.highestOneBit(Math.max(1, (int) (1 / minZoom)));
         	
         	System.out.println("Original image size: " + imgWidth + "x" + imgHeight);
-        	System.out.println("Splitting image into two halves at x=" + halfWidth);
+        	System.out.println("Splitting image into " + tileCount + " tiles for " + RMIWorkerRegistry.size() + " RMI workers, " 
+        			+ zooms.length + " zoom levels");
         	
-        	BufferedImage leftHalf = originalImage.getSubimage(0, 0,  halfWidth, imgHeight);
-            BufferedImage rightHalf = originalImage.getSubimage(halfWidth, 0, imgWidth - halfWidth, imgHeight);
-            
-            byte[] leftHalfBytes = Utils.imageToBytes(leftHalf, typeImage);
-            byte[] rightHalfBytes = Utils.imageToBytes(rightHalf, typeImage);
-            
-            System.out.println("Left half: " + leftHalfBytes.length + " bytes");
-            System.out.println("Right half: " + rightHalfBytes.length + " bytes");
-            
-            
-            // We have 2 servers rmi for this task 
-            ExecutorService executor = Executors.newFixedThreadPool(2);
-            
-            Future<ImageProcessingResult> leftResult = executor.submit(() -> {
-            	return processHalfOnRMIServer1(leftHalfBytes, typeImage, zoomFactor, uploadId);
-            });
+        	String transport = System.getenv().getOrDefault("RMI_TRANSPORT", RMI_TRANSPORT);
+        	boolean rasterMode = !"bmp".equalsIgnoreCase(transport);
         	
-            Future<ImageProcessingResult> rightResult = executor.submit(() -> {
-            	return processHalfOnRMIServer2(rightHalfBytes, typeImage, zoomFactor, uploadId);
-            });
-            
-            
-            ImageProcessingResult leftProcessed = leftResult.get();
-            ImageProcessingResult rightProcessed = rightResult.get();
-            
-            executor.shutdown(); // let's stop
-            
-            if (leftProcessed.getErrorMessage() != null) {
-                throw new IOException("RMI Server 1 error: " + leftProcessed.getErrorMessage());
+            // tiles are horizontal bands; the zoomed size of each band is known up front,
+            // so every tile is written at its own rows of each output file as soon as it is back
+            int[] tileY = new int[tileCount + 1];
+            for (int i = 0; i < tileCount; i++) {
+            	tileY[i + 1] = (int) ((long) (i + 1) * imgHeight / tileCount);
             }
-            if (rightProcessed.getErrorMessage() != null) {
-                throw new IOException("RMI Server 2 error: " + rightProcessed.getErrorMessage());
+            
+            for (int l = 0; l < zooms.length; l++) {
+            	ZoomLevel level = new ZoomLevel(zooms[l], imgWidth, tileY, typeImage);
+            	levels.add(level);
+            	level.writer = new StreamingBmpWriter(level.file, level.outWidth, level.getHeight());
             }
             
-            System.out.println("Both halves processed successfully. Combining...");
-        	
-            byte[] combinedImage = Utils.combineImages(
-                    leftProcessed.getImage(), 
-                    rightProcessed.getImage(), 
-                    typeImage
-                );
+            List<Future<ImageProcessingResult>> results = new ArrayList<>(tileCount);
+            long tilesStart = System.nanoTime();
             
-            System.out.println("Combined image size: " + combinedImage.length + " bytes");
+            try {
+            	if (TileBatchDispatcher.isEnabled()) {
+            		// several tiles per call, handed out to the workers as they ask for more
+            		long bandRows = imgHeight / tileCount + 1;
+            		double outScale = Arrays.stream(zooms).map(zoom -> zoom * zoom).sum();
+            		long bandBytes = (long) Math.ceil(4.0 * imgWidth * Math.max(bandRows + 2 * halo, bandRows * outScale));
+            		new TileBatchDispatcher(tileCount, bandBytes, tiles -> {
+            			TileBatch batch = rasterMode 
+            					? new TileBatch(uploadId, imgWidth, zooms, filter, tiles.size()) 
+            					: new TileBatch(uploadId, typeImage, zooms, tiles.size());
+            			
+            			for (int slot = 0; slot < tiles.size(); slot++) {
+            				int tileIndex = tiles.get(slot);
+            				int y0 = tileY[tileIndex];
+            				int rows = tileY[tileIndex + 1] - y0;
+            				
+            				if (rasterMode) {
+            					int top = Math.max(0, y0 - halo) / align * align;
+            					int bottom = Math.min(imgHeight, y0 + rows + halo);
+            					int[] pixels = Utils.toPackedRGB(originalImage, top, bottom - top);
+            					Metrics.addBytes("rmi_send", 4L * pixels.length);
+            					batch.setRaster(slot, tileIndex, bottom - top, pixels, tileRows(levels, imgHeight, tileIndex, top));
+            				} else {
+            					byte[] tileBytes = Utils.imageToBytes(originalImage.getSubimage(0, y0, imgWidth, rows), typeImage);
+            					Metrics.addBytes("rmi_send", tileBytes.length);
+            					batch.setImage(slot, tileIndex, tileBytes);
+            				}
+            			}
+            			return batch;
+            		}, (tileIndex, processed) -> {
+            			addReceivedBytes(processed);
+            			return stitchTile(levels, tileIndex, processed);
+            		}, Long.parseLong(System.getenv().getOrDefault("RMI_BUSY_MAX_WAIT_MS", RMI_BUSY_MAX_WAIT_MS))).run();
+            	} else {
+		            for (int i = 0; i < tileCount; i++) {
+		            	final int tileIndex = i;
+		            	final int y0 = tileY[i];
+		            	final int y1 = tileY[i + 1];
+	            	
+		            	results.add(ProcessingExecutor.submitTile(() -> {
+		            		ImageProcessingResult[] processed;
+	            		
+		            		long encodeStart = System.nanoTime();
+	            		
+		            		if (rasterMode) {
+		            			// one tile on the wire with its halo, the worker produces every level from it
+		            			int top = Math.max(0, y0 - halo) / align * align;
+		            			int bottom = Math.min(imgHeight, y1 + halo);
+		            			int[] pixels = Utils.toPackedRGB(originalImage, top, bottom - top);
+		            			TileRows rows = tileRows(levels, imgHeight, tileIndex, top);
+		            			Metrics.observe("tile_encode", encodeStart, null);
+		            			Metrics.addBytes("rmi_send", 4L * pixels.length);
+		            			processed = processTileOnRMIServer(tileIndex, remote -> 
+		            				remote.processRasterLevels(imgWidth, bottom - top, pixels, zooms, rows, filter, uploadId), uploadId, zooms);
+		            		} else {
+		            			byte[] tileBytes = Utils.imageToBytes(originalImage.getSubimage(0, y0, imgWidth, y1 - y0), typeImage);
+		            			Metrics.observe("tile_encode", encodeStart, null);
+		            			Metrics.addBytes("rmi_send", (long) tileBytes.length * zooms.length);
+		            			processed = processTileOnRMIServer(tileIndex, remote -> {
+		            				ImageProcessingResult[] perLevel = new ImageProcessingResult[zooms.length];
+		            				for (int l = 0; l < zooms.length; l++) {
+		            					perLevel[l] = remote.processIt(tileBytes, typeImage, zooms[l], uploadId);
+		            				}
+		            				return perLevel;
+		            			}, uploadId, zooms);
+		            		}
+	            		
+		            		ImageProcessingResult error = firstError(processed);
+		            		if (error != null) {
+		            			return error;
+		            		}
+	            		
+		            		error = stitchTile(levels, tileIndex, processed);
+		            		return error != null ? error : new ImageProcessingResult(uploadId, (byte[]) null);
+		            	}));
+		            }
+	            
+	            	for (int i = 0; i < tileCount; i++) {
+	            		ImageProcessingResult processed = results.get(i).get();
+            		
+	            		if (processed.getErrorMessage() != null) {
+	            			throw new IOException("RMI error on tile " + i + ": " + processed.getErrorMessage());
+	            		}
+	            	}
+            	}
+            } catch (Exception e) {
+            	// the other tiles of this image are useless now
+            	results.forEach(result -> result.cancel(true));
+            	throw e;
+            } finally {
+            	for (ZoomLevel level : levels) {
+            		level.writer.close();
+            	}
+            }
             
+            Metrics.observe("tiles", tilesStart, uploadId);
+            System.out.println("All " + tileCount + " tiles processed and stitched (" + transport + ")");
             
-            long idInserted = db.saveAsBlob(imageBytes, combinedImage, typeImage);
-            System.out.println("The combined image was saved in database, ID: " + idInserted);
+            // the rows are written by the DB writer together with other images,
+            // the files must stay until they are committed
+            // the original goes in the first row only, the other levels share it by content_hash
+            List<CompletableFuture<Long>> saved = new ArrayList<>(levels.size());
+            for (ZoomLevel level : levels) {
+            	System.out.println("Zoom " + level.zoom + ": " + level.outWidth + "x" + level.getHeight() 
+            			+ ", " + Files.size(level.file) + " bytes");
+            	
+            	long hashStart = System.nanoTime();
+            	String zoomedHash = Utils.sha256Hex(level.file);
+            	Metrics.observe("hash", hashStart, null);
+            	saved.add(db.saveAsBlob(imageBytes, saved.isEmpty(), level.file, typeImage, contentHash, zoomedHash, level.zoom, filter));
+            }
             
-            Notification.notifyApp(uploadId, idInserted);
+            long saveStart = System.nanoTime();
+            for (int l = 0; l < levels.size(); l++) {
+            	ZoomLevel level = levels.get(l);
+            	long idInserted = saved.get(l).get();
+            	if (l == 0) {
+            		Metrics.observe("db_insert", saveStart, uploadId);
+            	}
+            	
+            	System.out.println("The combined image (zoom " + level.zoom + ") was saved in database, ID: " + idInserted);
+            	ResultCache.put(contentHash, level.zoom, filter, idInserted);
+            	
+            	Notification.notifyApp(uploadId, idInserted, level.zoom);
+            }
             
             System.out.println("Finished the job of consumer ....");
         	
         } catch (Exception e) {
             e.printStackTrace();
             throw new IOException("Failed to process image via RMI", e);
+        } finally {
+        	for (ZoomLevel level : levels) {
+        		Files.deleteIfExists(level.file);
+        	}
         }
     }
     
     
-    private ImageProcessingResult processHalfOnRMIServer1(byte[] imageBytes, String typeImage, 
-            double zoomFactor, String uploadId) {
-    	try {
-			int port = Integer.parseInt(System.getenv().getOrDefault("RMI_SERVER_PORT_ZOOM", RMI_SERVER_PORT_ZOOM));
-			String addressIp = System.getenv().getOrDefault("RMI_SERVER_IP_ZOOM", RMI_SERVER_IP_ZOOM);
-			
-			Registry registry = LocateRegistry.getRegistry(addressIp, port);
-			ImageProcessorInterface remote = (ImageProcessorInterface) registry.lookup("ImageProcessorService");
-
-			System.out.println("Processing LEFT half on RMI Server 1 with zoom factor: " + zoomFactor);
-			return remote.processIt(imageBytes, typeImage, zoomFactor, uploadId);
-		
-			} catch (Exception e) {
-				e.printStackTrace();
-				ImageProcessingResult error = new ImageProcessingResult(uploadId, e.getMessage());
-				return error;
-			}
+    /**
+     * Rows of context sent above and below a raster tile: the reach of the kernel at the
+     * smallest zoom (it widens when shrinking), plus the 2x2 blocks of halving. An unknown
+     * filter (the worker default) counts as lanczos, the widest.
+     */
+    private static int haloRows(String filter, double minZoom) {
+    	double support;
+    	if ("area".equalsIgnoreCase(filter)) {
+    		support = 0.5;
+    	} else if ("bilinear".equalsIgnoreCase(filter)) {
+    		support = 1;
+    	} else if ("bicubic".equalsIgnoreCase(filter) || "graphics2d".equalsIgnoreCase(filter)) {
+    		support = 2;
+    	} else {
+    		support = 3;
+    	}
+    	return (int) Math.ceil((support + 1) * Math.max(1, 1 / minZoom));
     }
     
-    private ImageProcessingResult processHalfOnRMIServer2(byte[] imageBytes, String typeImage, 
-            double zoomFactor, String uploadId) {
-		try {
-			int port = Integer.parseInt(System.getenv().getOrDefault("RMI_SERVER_PORT_ZOOM_2", "1100"));
-			String addressIp = System.getenv().getOrDefault("RMI_SERVER_IP_ZOOM_2", "localhost");
-			
-			Registry registry = LocateRegistry.getRegistry(addressIp, port);
-			ImageProcessorInterface remote = (ImageProcessorInterface) registry.lookup("ImageProcessorService");
-			
-			System.out.println("Processing RIGHT half on RMI Server 2 with zoom factor: " + zoomFactor);
-			return remote.processIt(imageBytes, typeImage, zoomFactor, uploadId);
-		
-		} catch (Exception e) {
-			e.printStackTrace();
-			ImageProcessingResult error = new ImageProcessingResult(uploadId, e.getMessage());
-			return error;
-		}
-	}
+    
+    /**
+     * Where the output rows of a tile sent from row top (halo included) sit on each level:
+     * the whole image maps imgHeight source rows onto the level height.
+     */
+    private static TileRows tileRows(List<ZoomLevel> levels, int imgHeight, int tileIndex, int top) {
+    	TileRows rows = new TileRows(levels.size());
+    	
+    	for (int l = 0; l < levels.size(); l++) {
+    		ZoomLevel level = levels.get(l);
+    		int outStart = level.outY[tileIndex];
+    		double step = (double) imgHeight / level.getHeight();
+    		
+    		rows.setLevel(l, level.outY[tileIndex + 1] - outStart, step, outStart * step - top);
+    	}
+    	return rows;
+    }
+    
+    
+    private static void addReceivedBytes(ImageProcessingResult[] results) {
+    	for (ImageProcessingResult result : results) {
+    		if (result.getPixels() != null) {
+    			Metrics.addBytes("rmi_receive", 4L * result.getPixels().length);
+    		} else if (result.getImage() != null) {
+    			Metrics.addBytes("rmi_receive", result.getImage().length);
+    		}
+    	}
+    }
+    
+    
+    private static ImageProcessingResult firstError(ImageProcessingResult[] results) {
+    	for (ImageProcessingResult result : results) {
+    		if (result == null) {
+    			return new ImageProcessingResult(null, "Missing zoom level in worker result");
+    		}
+    		if (result.getErrorMessage() != null) {
+    			return result;
+    		}
+    	}
+    	return null;
+    }
+    
+    
+    /**
+     * Writes every zoom level of a tile to its rows of the level files; null when done,
+     * else the error.
+     */
+    private ImageProcessingResult stitchTile(List<ZoomLevel> levels, int tileIndex, ImageProcessingResult[] processed) throws IOException {
+    	long stitchStart = System.nanoTime();
+    	
+    	for (int l = 0; l < levels.size(); l++) {
+    		ZoomLevel level = levels.get(l);
+    		int rows = level.outY[tileIndex + 1] - level.outY[tileIndex];
+    		
+    		ImageProcessingResult error = writeTile(level.writer, level.outY[tileIndex], rows, processed[l]);
+    		if (error.getErrorMessage() != null) {
+    			return error;
+    		}
+    		// the level is on disk, let the pixels go
+    		processed[l] = null;
+    	}
+    	Metrics.observe("stitch", stitchStart, null);
+    	
+    	return null;
+    }
+    
+    
+    /**
+     * Writes a processed tile to its rows of the output and returns a result without the
+     * pixels, so nothing of the tile stays in memory once it is on disk.
+     */
+    private ImageProcessingResult writeTile(StreamingBmpWriter writer, int y, int rows, ImageProcessingResult processed) throws IOException {
+    	int tileWidth;
+    	int tileHeight;
+    	int[] pixels;
+    	
+    	if (processed.getPixels() != null) {
+    		tileWidth = processed.getWidth();
+    		tileHeight = processed.getHeight();
+    		pixels = processed.getPixels();
+    	} else {
+    		BufferedImage tile = ImageIO.read(new ByteArrayInputStream(processed.getImage()));
+    		if (tile == null) {
+    			return new ImageProcessingResult(processed.getUploadId(), "Failed to read processed image tile");
+    		}
+    		tileWidth = tile.getWidth();
+    		tileHeight = tile.getHeight();
+    		pixels = Utils.toPackedRGB(tile, 0, tileHeight);
+    	}
+    	
+    	writer.writeRows(y, rows, tileWidth, tileHeight, pixels);
+    	
+    	return new ImageProcessingResult(processed.getUploadId(), tileWidth, tileHeight, null);
+    }
+    
+    
+    /**
+     * Sends one tile to the least loaded worker (WorkerLoad), in round robin order from the
+     * tile index when they are equally idle. When a worker fails or is busy we move to the
+     * next one, so a dead or saturated container only slows the image down. When every
+     * worker is busy the tile waits until one takes calls again, up to RMI_BUSY_MAX_WAIT_MS.
+     */
+    private ImageProcessingResult[] processTileOnRMIServer(int tileIndex, RMIStubCache.RemoteCall<ImageProcessingResult[]> call, 
+    		String uploadId, double[] zooms) {
+    	ImageProcessingResult[] result = null;
+    	long deadline = System.currentTimeMillis() 
+    			+ Long.parseLong(System.getenv().getOrDefault("RMI_BUSY_MAX_WAIT_MS", RMI_BUSY_MAX_WAIT_MS));
+    	
+    	while (true) {
+    		boolean allBusy = true;
+    		
+	    	for (RMIWorker worker : WorkerLoad.candidates(tileIndex)) {
+		    	try {
+					System.out.println("Processing tile " + tileIndex + " on RMI worker " + worker + " with zoom factors: " + Arrays.toString(zooms));
+					long callStart = System.nanoTime();
+					result = RMIStubCache.invoke(worker, call);
+					Metrics.observe("rmi_call", callStart, null);
+					
+					ImageProcessingResult busy = firstBusy(result);
+					if (busy != null) {
+						Metrics.increment("rmi_calls_total", "worker=\"" + worker + "\",outcome=\"busy\"");
+						System.out.println("RMI worker " + worker + " is busy, tile " + tileIndex + " goes elsewhere");
+						WorkerLoad.markBusy(worker, busy.getRetryAfterMillis());
+						continue;
+					}
+					allBusy = false;
+					
+					if (firstError(result) == null) {
+						Metrics.increment("rmi_calls_total", "worker=\"" + worker + "\",outcome=\"ok\"");
+						addReceivedBytes(result);
+						return result;
+					}
+					Metrics.increment("rmi_calls_total", "worker=\"" + worker + "\",outcome=\"failed\"");
+				} catch (Exception e) {
+					allBusy = false;
+					Metrics.increment("rmi_calls_total", "worker=\"" + worker + "\",outcome=\"error\"");
+					e.printStackTrace();
+					result = new ImageProcessingResult[] { new ImageProcessingResult(uploadId, "Worker " + worker + ": " + e.getMessage()) };
+				}
+	    	}
+	    	
+	    	long left = deadline - System.currentTimeMillis();
+	    	if (!allBusy || left <= 0) {
+	    		return result;
+	    	}
+	    	
+	    	try {
+	    		Thread.sleep(Math.max(10, Math.min(WorkerLoad.timeUntilFree(), left)));
+	    	} catch (InterruptedException e) {
+	    		// the image was cancelled
+	    		Thread.currentThread().interrupt();
+	    		return result;
+	    	}
+    	}
+    }
+    
+    private static ImageProcessingResult firstBusy(ImageProcessingResult[] results) {
+    	for (ImageProcessingResult result : results) {
+    		if (result != null && result.isBusy()) {
+    			return result;
+    		}
+    	}
+    	return null;
+    }
 }
@@ -10,6 +10,14 @@ public class ImageProcessingResult implements Serializable {
     private byte[] image;
     private String errorMessage;  
     
+    // raster transport: packed 0xRRGGBB pixels, row by row
+    private int width;
+    private int height;
+    private int[] pixels;
+    
+    // busy: the worker was saturated, the same call can be sent again (here or elsewhere)
+    private long retryAfterMillis;
+    
     // Constructor for success
     public ImageProcessingResult(String uploadId, byte[] image) {
         this.status = "success";
@@ -17,6 +25,15 @@ public class ImageProcessingResult implements Serializable {
         this.image = image;
     }
     
+    // Constructor for success with a raster
+    public ImageProcessingResult(String uploadId, int width, int height, int[] pixels) {
+        this.status = "success";
+        this.uploadId = uploadId;
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+    
     // Constructor for error
     public ImageProcessingResult(String uploadId, String errorMessage) {
         this.status = "error";
@@ -24,6 +41,14 @@ public class ImageProcessingResult implements Serializable {
         this.errorMessage = errorMessage;
     }
     
+    // Retryable error: the worker refused the call before doing any work
+    public static ImageProcessingResult busy(String uploadId, String errorMessage, long retryAfterMillis) {
+        ImageProcessingResult result = new ImageProcessingResult(uploadId, errorMessage);
+        result.status = "busy";
+        result.retryAfterMillis = retryAfterMillis;
+        return result;
+    }
+    
     // Getters
     public String getStatus() {
         return status;
@@ -40,6 +65,26 @@ public class ImageProcessingResult implements Serializable {
     public String getErrorMessage() {
         return errorMessage;
     }
+    
+    public int getWidth() {
+        return width;
+    }
+    
+    public int getHeight() {
+        return height;
+    }
+    
+    public int[] getPixels() {
+        return pixels;
+    }
+    
+    public boolean isBusy() {
+        return "busy".equals(status);
+    }
+    
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
 
     
 }
\ No newline at end of file
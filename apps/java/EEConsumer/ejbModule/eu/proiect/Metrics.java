@@ -0,0 +1,162 @@
+package eu.proiect;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Per-stage metrics in the Prometheus text format (same class in every module).
+ *
+ * - image_stage_seconds{stage}: latency histogram of a pipeline stage
+ * - image_stage_bytes_total{stage}: bytes moved by a stage (rate() gives bytes/sec)
+ * - counters with labels, e.g. rmi_calls_total{worker, outcome}
+ * - gauges read when scraped, e.g. in-flight images
+ *
+ * A stage timed for an upload is also logged with its uploadId, so one image can be
+ * followed through the log lines of every container.
+ */
+public class Metrics {
+	static final String METRICS_PORT = "9101";
+
+	// seconds, from a tile resize to a whole multi-GB image
+	private static final double[] BUCKETS = { 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120 };
+
+	private static final Map<String, Histogram> stages = new ConcurrentHashMap<>();
+	private static final Map<String, LongAdder> stageBytes = new ConcurrentHashMap<>();
+	// name -> labels -> value
+	private static final Map<String, Map<String, LongAdder>> counters = new ConcurrentHashMap<>();
+	private static final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+
+	static class Histogram {
+		final LongAdder[] buckets = new LongAdder[BUCKETS.length];
+		final DoubleAdder sum = new DoubleAdder();
+		final LongAdder count = new LongAdder();
+
+		Histogram() {
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		void observe(double seconds) {
+			for (int i = 0; i < BUCKETS.length; i++) {
+				if (seconds <= BUCKETS[i]) {
+					buckets[i].increment();
+					break;
+				}
+			}
+			sum.add(seconds);
+			count.increment();
+		}
+	}
+
+
+	/**
+	 * Records the time since startNanos (System.nanoTime()) for a stage. With an uploadId
+	 * the stage is logged as well.
+	 */
+	public static void observe(String stage, long startNanos, String uploadId) {
+		observeSeconds(stage, (System.nanoTime() - startNanos) / 1e9, uploadId);
+	}
+
+	public static void observeSeconds(String stage, double seconds, String uploadId) {
+		stages.computeIfAbsent(stage, key -> new Histogram()).observe(seconds);
+
+		if (uploadId != null) {
+			System.out.printf("[%s] stage %s took %.1f ms%n", uploadId, stage, seconds * 1000);
+		}
+	}
+
+	public static void addBytes(String stage, long bytes) {
+		stageBytes.computeIfAbsent(stage, key -> new LongAdder()).add(bytes);
+	}
+
+	/**
+	 * labels in the exposition form, e.g. worker="container4:1099",outcome="error"
+	 */
+	public static void increment(String name, String labels) {
+		counters.computeIfAbsent(name, key -> new ConcurrentHashMap<>())
+				.computeIfAbsent(labels, key -> new LongAdder())
+				.increment();
+	}
+
+	public static void gauge(String name, LongSupplier value) {
+		gauges.put(name, value);
+	}
+
+
+	public static String render() {
+		StringBuilder out = new StringBuilder(4096);
+
+		out.append("# TYPE image_stage_seconds histogram\n");
+		for (Map.Entry<String, Histogram> entry : new TreeMap<>(stages).entrySet()) {
+			String stage = entry.getKey();
+			Histogram histogram = entry.getValue();
+
+			long cumulative = 0;
+			for (int i = 0; i < BUCKETS.length; i++) {
+				cumulative += histogram.buckets[i].sum();
+				out.append("image_stage_seconds_bucket{stage=\"").append(stage).append("\",le=\"").append(BUCKETS[i]).append("\"} ")
+						.append(cumulative).append('\n');
+			}
+			long count = histogram.count.sum();
+			out.append("image_stage_seconds_bucket{stage=\"").append(stage).append("\",le=\"+Inf\"} ").append(count).append('\n');
+			out.append("image_stage_seconds_sum{stage=\"").append(stage).append("\"} ").append(histogram.sum.sum()).append('\n');
+			out.append("image_stage_seconds_count{stage=\"").append(stage).append("\"} ").append(count).append('\n');
+		}
+
+		out.append("# TYPE image_stage_bytes_total counter\n");
+		for (Map.Entry<String, LongAdder> entry : new TreeMap<>(stageBytes).entrySet()) {
+			out.append("image_stage_bytes_total{stage=\"").append(entry.getKey()).append("\"} ").append(entry.getValue().sum()).append('\n');
+		}
+
+		for (Map.Entry<String, Map<String, LongAdder>> counter : new TreeMap<>(counters).entrySet()) {
+			out.append("# TYPE ").append(counter.getKey()).append(" counter\n");
+			for (Map.Entry<String, LongAdder> series : new TreeMap<>(counter.getValue()).entrySet()) {
+				out.append(counter.getKey()).append('{').append(series.getKey()).append("} ").append(series.getValue().sum()).append('\n');
+			}
+		}
+
+		for (Map.Entry<String, LongSupplier> gauge : new TreeMap<>(gauges).entrySet()) {
+			out.append("# TYPE ").append(gauge.getKey()).append(" gauge\n");
+			out.append(gauge.getKey()).append(' ').append(gauge.getValue().getAsLong()).append('\n');
+		}
+
+		return out.toString();
+	}
+
+	/**
+	 * GET /metrics on METRICS_PORT, for the modules that have no HTTP server of their own.
+	 */
+	public static void serve() {
+		int port = Integer.parseInt(System.getenv().getOrDefault("METRICS_PORT", METRICS_PORT));
+
+		try {
+			HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+			server.createContext("/metrics", exchange -> {
+				byte[] body = render().getBytes(StandardCharsets.UTF_8);
+
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream os = exchange.getResponseBody()) {
+					os.write(body);
+				}
+			});
+			server.start();
+
+			System.out.println("Metrics on http://0.0.0.0:" + port + "/metrics");
+		} catch (IOException e) {
+			System.err.println("Could not start the metrics endpoint on port " + port + ": " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,330 @@
+package eu.proiect;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The consumer side of the NIO tile transport: one persistent connection to a worker,
+ * shared by every thread. Requests are queued for a writer thread (one gathering write
+ * each, an interrupted caller never touches the channel) and a reader thread hands each
+ * reply to the request with its id, so any number of tiles can be in flight on the
+ * connection at once.
+ *
+ * It is an ImageProcessorInterface, RMIStubCache hands it out instead of the RMI stub when
+ * WORKER_TRANSPORT=nio. A broken connection fails every request in flight with a
+ * ConnectIOException, RMIStubCache then connects again.
+ *
+ * Batches are START_BATCH and TAKE_RESULTS frames, the worker runs them through the same
+ * startBatch/takeBatchResults as over RMI (and refuses them the same way when saturated).
+ */
+public class NioTileClient implements ImageProcessorInterface, Closeable {
+	static final String NIO_CALL_TIMEOUT_MS = String.valueOf(10 * 60 * 1000);
+	static final String NIO_POLL_GRACE_MS = "30000";
+	
+	private static final long callTimeoutMs = 
+			Long.parseLong(System.getenv().getOrDefault("NIO_CALL_TIMEOUT_MS", NIO_CALL_TIMEOUT_MS));
+	private static final long pollGraceMs = 
+			Long.parseLong(System.getenv().getOrDefault("NIO_POLL_GRACE_MS", NIO_POLL_GRACE_MS));
+	
+	private final String address;
+	private final SocketChannel channel;
+	private final BlockingQueue<Outgoing> outbox = new LinkedBlockingQueue<>();
+	private final Thread writer;
+	private final Map<Integer, CompletableFuture<TileProtocol.FrameReader>> inFlight = new ConcurrentHashMap<>();
+	private final AtomicInteger nextRequestId = new AtomicInteger();
+	private volatile IOException failure;
+	
+	
+	static class Outgoing {
+		final TileProtocol.FrameWriter request;
+		final ByteBuffer[] buffers;
+		
+		Outgoing(TileProtocol.FrameWriter request, ByteBuffer[] buffers) {
+			this.request = request;
+			this.buffers = buffers;
+		}
+	}
+	
+	
+	public NioTileClient(String host, int port) throws RemoteException {
+		this.address = host + ":" + port;
+		
+		try {
+			channel = SocketChannel.open(new InetSocketAddress(host, port));
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		} catch (IOException e) {
+			throw new ConnectException("NIO connection to " + address + " failed", e);
+		}
+		
+		writer = new Thread(this::writeRequests, "nio-writer-" + address);
+		writer.setDaemon(true);
+		writer.start();
+		
+		Thread reader = new Thread(this::readReplies, "nio-reader-" + address);
+		reader.setDaemon(true);
+		reader.start();
+		
+		System.out.println("NIO connection to worker " + address);
+	}
+	
+	
+	@Override
+	public ImageProcessingResult processIt(byte[] imageBytes, String typeImage, double zoomFactor, String uploadId) throws RemoteException {
+		int id = nextRequestId.incrementAndGet();
+		return results(call(id, TileProtocol.encodedRequest(id, imageBytes, typeImage, new double[] { zoomFactor }, uploadId), callTimeoutMs), uploadId)[0];
+	}
+	
+	@Override
+	public ImageProcessingResult processRaster(int width, int height, int[] pixels, double zoomFactor, String uploadId) throws RemoteException {
+		return processRasterLevels(width, height, pixels, new double[] { zoomFactor }, null, null, uploadId)[0];
+	}
+	
+	@Override
+	public ImageProcessingResult[] processRasterLevels(int width, int height, int[] pixels, double[] zoomFactors, TileRows rows, 
+			String filter, String uploadId) throws RemoteException {
+		int id = nextRequestId.incrementAndGet();
+		return results(call(id, TileProtocol.rasterRequest(id, width, height, pixels, zoomFactors, rows, filter, uploadId), callTimeoutMs), 
+				uploadId);
+	}
+	
+	@Override
+	public WorkerStatus getStatus() throws RemoteException {
+		int id = nextRequestId.incrementAndGet();
+		TileProtocol.FrameReader reply = call(id, new TileProtocol.FrameWriter(id, TileProtocol.STATUS), callTimeoutMs);
+		
+		try {
+			expect(reply, TileProtocol.STATUS_REPLY);
+			return TileProtocol.readStatus(reply);
+		} catch (RemoteException e) {
+			throw e;
+		} catch (IOException e) {
+			fail(e);
+			throw new ConnectIOException("Malformed reply from " + address, e);
+		} finally {
+			reply.release();
+		}
+	}
+	
+	@Override
+	public long startBatch(TileBatch tiles) throws RemoteException {
+		int id = nextRequestId.incrementAndGet();
+		TileProtocol.FrameReader reply = call(id, TileProtocol.batchRequest(id, tiles), callTimeoutMs);
+		
+		try {
+			byte type = reply.getByte();
+			if (type == TileProtocol.BATCH_STARTED) {
+				return reply.getLong();
+			}
+			if (type != TileProtocol.RESULTS) {
+				throw new IOException("Unexpected reply type " + type);
+			}
+			// the batch was not taken at all
+			ImageProcessingResult refused = TileProtocol.readResults(reply, tiles.getUploadId())[0];
+			if (refused.isBusy()) {
+				return -Math.max(1, refused.getRetryAfterMillis());
+			}
+			throw new RemoteException("Batch refused by " + address + ": " + refused.getErrorMessage());
+		} catch (RemoteException e) {
+			throw e;
+		} catch (IOException e) {
+			fail(e);
+			throw new ConnectIOException("Malformed reply from " + address, e);
+		} finally {
+			reply.release();
+		}
+	}
+	
+	@Override
+	public TileResult[] takeBatchResults(long batchId, long maxWaitMillis) throws RemoteException {
+		int id = nextRequestId.incrementAndGet();
+		TileProtocol.FrameReader reply = call(id, TileProtocol.takeRequest(id, batchId, maxWaitMillis), maxWaitMillis + pollGraceMs);
+		
+		try {
+			expect(reply, TileProtocol.BATCH_RESULTS);
+			return TileProtocol.readBatchResults(reply, null);
+		} catch (RemoteException e) {
+			throw e;
+		} catch (IOException e) {
+			fail(e);
+			throw new ConnectIOException("Malformed reply from " + address, e);
+		} finally {
+			reply.release();
+		}
+	}
+	
+	@Override
+	public void close() {
+		fail(new IOException("Connection closed"));
+	}
+	
+	
+	private TileProtocol.FrameReader call(int id, TileProtocol.FrameWriter request, long timeoutMs) throws RemoteException {
+		try {
+			return send(id, request).get(timeoutMs, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			inFlight.remove(id);
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Interrupted waiting for " + address);
+		} catch (TimeoutException e) {
+			inFlight.remove(id);
+			throw new RemoteException("No reply from " + address + " in " + timeoutMs + " ms");
+		} catch (ExecutionException e) {
+			throw new ConnectIOException("NIO connection to " + address + " lost", e.getCause() instanceof Exception cause ? cause : null);
+		}
+	}
+	
+	private CompletableFuture<TileProtocol.FrameReader> send(int id, TileProtocol.FrameWriter request) throws RemoteException {
+		if (failure != null) {
+			request.release();
+			throw new ConnectIOException("NIO connection to " + address + " lost", failure);
+		}
+		
+		ByteBuffer[] buffers;
+		try {
+			buffers = request.finish();
+		} catch (IOException e) {
+			// too large to send, the connection is fine
+			throw new RemoteException(e.getMessage());
+		}
+		
+		CompletableFuture<TileProtocol.FrameReader> reply = new CompletableFuture<>();
+		inFlight.put(id, reply);
+		outbox.add(new Outgoing(request, buffers));
+		
+		if (failure != null) {
+			// failed meanwhile, fail() may have missed this one
+			inFlight.remove(id);
+			dropOutbox();
+			throw new ConnectIOException("NIO connection to " + address + " lost", failure);
+		}
+		return reply;
+	}
+	
+	private void writeRequests() {
+		try {
+			while (true) {
+				Outgoing next = outbox.take();
+				try {
+					TileProtocol.write(channel, next.buffers);
+					Metrics.addBytes("nio_send", next.request.getLength());
+				} finally {
+					next.request.release();
+				}
+			}
+		} catch (InterruptedException e) {
+			// closed by fail()
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+	
+	private void dropOutbox() {
+		Outgoing dropped;
+		while ((dropped = outbox.poll()) != null) {
+			dropped.request.release();
+		}
+	}
+	
+	private void readReplies() {
+		ByteBuffer length = ByteBuffer.allocateDirect(4).order(ByteOrder.LITTLE_ENDIAN);
+		
+		try {
+			while (true) {
+				length.clear();
+				readFully(length);
+				int size = length.flip().getInt();
+				if (size < 5 || size > TileProtocol.maxFrameBytes) {
+					throw new IOException("Invalid frame length " + size);
+				}
+				
+				ByteBuffer body = DirectBufferPool.acquire(size);
+				readFully(body);
+				body.flip();
+				Metrics.addBytes("nio_receive", 4L + size);
+				
+				TileProtocol.FrameReader reply = new TileProtocol.FrameReader(body);
+				CompletableFuture<TileProtocol.FrameReader> waiting = inFlight.remove(reply.getInt());
+				if (waiting == null || !waiting.complete(reply)) {
+					// timed out meanwhile
+					reply.release();
+				}
+			}
+		} catch (IOException e) {
+			fail(e);
+		} catch (Throwable e) {
+			// e.g. no direct memory for a reply: nothing can be read after it
+			fail(new IOException("Reader failed: " + e, e));
+		}
+	}
+	
+	private void readFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new IOException("Connection closed by the worker");
+			}
+		}
+	}
+	
+	// the first failure closes the connection and every request in flight fails with it
+	private void fail(IOException e) {
+		synchronized (this) {
+			if (failure != null) {
+				return;
+			}
+			failure = e;
+		}
+		
+		System.out.println("NIO connection to worker " + address + " closed: " + e.getMessage());
+		try {
+			channel.close();
+		} catch (IOException ignored) {
+			// closing anyway
+		}
+		writer.interrupt();
+		dropOutbox();
+		inFlight.values().forEach(reply -> reply.completeExceptionally(e));
+		inFlight.clear();
+	}
+	
+	private ImageProcessingResult[] results(TileProtocol.FrameReader reply, String uploadId) throws RemoteException {
+		try {
+			expect(reply, TileProtocol.RESULTS);
+			return TileProtocol.readResults(reply, uploadId);
+		} catch (RemoteException e) {
+			throw e;
+		} catch (IOException e) {
+			fail(e);
+			throw new ConnectIOException("Malformed reply from " + address, e);
+		} finally {
+			reply.release();
+		}
+	}
+	
+	// a RESULTS reply to another request is the worker refusing it, the connection is fine
+	private static void expect(TileProtocol.FrameReader reply, byte type) throws IOException {
+		byte received = reply.getByte();
+		if (received == TileProtocol.RESULTS && type != TileProtocol.RESULTS) {
+			throw new RemoteException("Request refused by the worker: " + TileProtocol.readResults(reply, null)[0].getErrorMessage());
+		}
+		if (received != type) {
+			throw new IOException("Unexpected reply type " + received);
+		}
+	}
+}
@@ -6,16 +6,85 @@ import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
 public class Notification {
+	static final String STATUS_QUEUE = "image.status";
+	
+	// "broker": completion event on the image.status queue, "http": POST to Javalin
+	static final String NOTIFY_MODE = "broker";
+	
+	private static Session statusSession;
+	private static MessageProducer statusProducer;
+	
+	
+	/**
+	 * Opens the producer of completion events on the consumer connection. The event is
+	 * persistent, so it waits in the broker while Javalin is restarting.
+	 */
+	public static synchronized void init(Connection connection) throws JMSException {
+		if (!isBrokerMode()) {
+			return;
+		}
+		
+		statusSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		statusProducer = statusSession.createProducer(statusSession.createQueue(STATUS_QUEUE));
+		statusProducer.setDeliveryMode(DeliveryMode.PERSISTENT);
+		
+		System.out.println("Completion events go to queue: " + STATUS_QUEUE);
+	}
 	
+	/**
+	 * One event per zoom level, an upload with several levels gets several events.
+	 */
+	public static void notifyApp(String uploadId, long idInserted, double zoom) {
+		long start = System.nanoTime();
+		
+		if (isBrokerMode() && statusProducer != null) {
+			publishStatus(uploadId, idInserted, zoom);
+		} else {
+			notifyAppHttp(uploadId, idInserted, zoom);
+		}
+		
+		Metrics.observe("notify", start, uploadId);
+	}
+	
+	
+	private static boolean isBrokerMode() {
+		return !"http".equalsIgnoreCase(System.getenv().getOrDefault("NOTIFY_MODE", NOTIFY_MODE));
+	}
+	
+	// the session is shared by all processing threads, sends are serialized
+	private static synchronized void publishStatus(String uploadId, long idInserted, double zoom) {
+		try {
+			Message message = statusSession.createMessage();
+			message.setStringProperty("uploadId", uploadId);
+			message.setLongProperty("rowId", idInserted);
+			message.setDoubleProperty("zoom", zoom);
+			message.setStringProperty("status", "IMAGE_READY");
+			
+			statusProducer.send(message);
+			
+			System.out.println("Completion event published for uploadId: " + uploadId);
+		} catch (JMSException e) {
+			e.printStackTrace();
+			System.err.println("Failed to publish completion event, falling back to HTTP");
+			notifyAppHttp(uploadId, idInserted, zoom);
+		}
+	}
 	
-	public static void notifyApp(String uploadId, long idInserted) {
+	private static void notifyAppHttp(String uploadId, long idInserted, double zoom) {
 		String url = System.getenv().getOrDefault("URL_STATUS_IMAGE_PROCESSING", "http://localhost");
 		int port =  Integer.parseInt(System.getenv().getOrDefault("PORT_STATUS_IMAGE_PROCESSING", "8081"));
 		
 		
 		HttpClient client = HttpClient.newHttpClient();
-		String formData = "uploadId=" + uploadId + "&idInserted="+idInserted;
+		String formData = "uploadId=" + uploadId + "&idInserted="+idInserted + "&zoom=" + zoom;
 		
 		URI pathUrl = URI.create(url + ":" + port + "/notify/image/status");
 		HttpRequest request = (HttpRequest) HttpRequest.newBuilder()
@@ -0,0 +1,86 @@
+package eu.proiect;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Thread pools shared by every message of the consumer.
+ * 
+ * - messages: CONSUMER_CONCURRENCY images are processed at the same time, the JMS
+ *   listener blocks when all of them are busy, so the broker keeps the rest.
+ * - fan-out: the RMI tile calls of all images, at most RMI_FANOUT_THREADS in flight.
+ *   They run on virtual threads (RMI_FANOUT_VIRTUAL=false for a fixed platform pool).
+ */
+public class ProcessingExecutor {
+	static final String CONSUMER_CONCURRENCY = "4";
+	static final String RMI_FANOUT_THREADS = "32";
+	static final String RMI_FANOUT_VIRTUAL = "true";
+	
+	private static final int messageConcurrency = 
+			Integer.parseInt(System.getenv().getOrDefault("CONSUMER_CONCURRENCY", CONSUMER_CONCURRENCY));
+	private static final int fanOutThreads = 
+			Integer.parseInt(System.getenv().getOrDefault("RMI_FANOUT_THREADS", RMI_FANOUT_THREADS));
+	private static final boolean fanOutVirtual = 
+			Boolean.parseBoolean(System.getenv().getOrDefault("RMI_FANOUT_VIRTUAL", RMI_FANOUT_VIRTUAL));
+	
+	private static final Semaphore messagePermits = new Semaphore(messageConcurrency);
+	private static final ExecutorService messageExecutor = Executors.newFixedThreadPool(messageConcurrency);
+	
+	private static final Semaphore fanOutPermits = new Semaphore(fanOutThreads);
+	private static final ExecutorService fanOutExecutor = fanOutVirtual 
+			? Executors.newVirtualThreadPerTaskExecutor() 
+			: Executors.newFixedThreadPool(fanOutThreads);
+	
+	
+	public static int getMessageConcurrency() {
+		return messageConcurrency;
+	}
+	
+	/**
+	 * Hands one image to the message pool. Blocks the caller while CONSUMER_CONCURRENCY
+	 * images are already in progress.
+	 */
+	public static void submitMessage(Runnable task) throws InterruptedException {
+		messagePermits.acquire();
+		
+		try {
+			messageExecutor.execute(() -> {
+				try {
+					task.run();
+				} finally {
+					messagePermits.release();
+				}
+			});
+		} catch (RuntimeException e) {
+			messagePermits.release();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Runs one RMI tile call. With virtual threads every task gets its own thread, the
+	 * semaphore is what keeps the number of calls on the wire bounded.
+	 */
+	public static <T> Future<T> submitTile(Callable<T> task) {
+		if (!fanOutVirtual) {
+			return fanOutExecutor.submit(task);
+		}
+		
+		return fanOutExecutor.submit(() -> {
+			fanOutPermits.acquire();
+			try {
+				return task.call();
+			} finally {
+				fanOutPermits.release();
+			}
+		});
+	}
+	
+	public static void shutdown() {
+		messageExecutor.shutdown();
+		fanOutExecutor.shutdown();
+	}
+}
@@ -0,0 +1,130 @@
+package eu.proiect;
+
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps one RMI stub per worker for the whole life of the consumer, so a tile does not
+ * pay for a registry round trip and a new stub. A stub is only checked when a call
+ * fails: then it is dropped, looked up again and the call is retried once.
+ * With WORKER_TRANSPORT=nio the "stub" is a NioTileClient connection on the same terms.
+ */
+public class RMIStubCache {
+	static final String SERVICE_NAME = "ImageProcessorService";
+	// rmi: Java RMI, nio: framed binary protocol (NioTileClient) on the RMI port + NIO_PORT_OFFSET
+	static final String WORKER_TRANSPORT = "nio";
+	static final String NIO_PORT_OFFSET = "1000";
+	
+	private static final boolean nio = "nio".equalsIgnoreCase(System.getenv().getOrDefault("WORKER_TRANSPORT", WORKER_TRANSPORT));
+	private static final int nioPortOffset = Integer.parseInt(System.getenv().getOrDefault("NIO_PORT_OFFSET", NIO_PORT_OFFSET));
+	
+	private static final Map<RMIWorker, ImageProcessorInterface> stubs = new ConcurrentHashMap<>();
+	
+	
+	@FunctionalInterface
+	public interface RemoteCall<T> {
+		T call(ImageProcessorInterface remote) throws RemoteException;
+	}
+	
+	
+	// carries the checked exception of lookup out of computeIfAbsent
+	private static class LookupFailed extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		
+		LookupFailed(Exception cause) {
+			super(cause);
+		}
+	}
+	
+	
+	/**
+	 * The cached stub, looked up once even when many tiles ask at the same time (so one
+	 * NioTileClient connection per worker, not one per racing thread).
+	 */
+	public static ImageProcessorInterface get(RMIWorker worker) throws RemoteException, NotBoundException {
+		ImageProcessorInterface stub = stubs.get(worker);
+		if (stub != null) {
+			return stub;
+		}
+		
+		try {
+			return stubs.computeIfAbsent(worker, key -> {
+				try {
+					return lookup(key);
+				} catch (RemoteException | NotBoundException e) {
+					throw new LookupFailed(e);
+				}
+			});
+		} catch (LookupFailed e) {
+			if (e.getCause() instanceof RemoteException remote) {
+				throw remote;
+			}
+			throw (NotBoundException) e.getCause();
+		}
+	}
+	
+	public static void invalidate(RMIWorker worker, ImageProcessorInterface stale) {
+		if (stubs.remove(worker, stale)) {
+			System.out.println("Dropped RMI stub of worker " + worker);
+			if (stale instanceof NioTileClient client) {
+				client.close();
+			}
+		}
+	}
+	
+	/**
+	 * Runs a remote call with the cached stub. When the worker was restarted (old
+	 * object id or closed connection) the stub is refreshed and the call retried once.
+	 * A NIO connection is shared by every tile, so only a connection error drops it: a
+	 * timeout or an interrupted wait fails that call alone.
+	 */
+	public static <T> T invoke(RMIWorker worker, RemoteCall<T> call) throws RemoteException, NotBoundException {
+		ImageProcessorInterface remote = get(worker);
+		
+		try {
+			return call.call(remote);
+		} catch (NoSuchObjectException | ConnectException | ConnectIOException e) {
+			invalidate(worker, remote);
+			System.out.println("Stale RMI stub for " + worker + " (" + e.getClass().getSimpleName() + "), looking it up again");
+			
+			return call.call(get(worker));
+		} catch (RemoteException e) {
+			if (!(remote instanceof NioTileClient)) {
+				invalidate(worker, remote);
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * Looks up every configured worker at startup. A worker that is not up yet is only
+	 * logged, it will be looked up again on first use.
+	 */
+	public static void warmUp() {
+		for (RMIWorker worker : RMIWorkerRegistry.getWorkers()) {
+			try {
+				get(worker);
+				System.out.println("RMI stub ready for worker " + worker);
+			} catch (RemoteException | NotBoundException e) {
+				System.err.println("RMI worker " + worker + " not reachable yet: " + e.getMessage());
+			}
+		}
+	}
+	
+	
+	private static ImageProcessorInterface lookup(RMIWorker worker) throws RemoteException, NotBoundException {
+		if (nio) {
+			return new NioTileClient(worker.getHost(), worker.getPort() + nioPortOffset);
+		}
+		
+		Registry registry = LocateRegistry.getRegistry(worker.getHost(), worker.getPort());
+		return (ImageProcessorInterface) registry.lookup(SERVICE_NAME);
+	}
+}
@@ -0,0 +1,24 @@
+package eu.proiect;
+
+public class RMIWorker {
+	private final String host;
+	private final int port;
+	
+	public RMIWorker(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+	
+	public String getHost() {
+		return host;
+	}
+	
+	public int getPort() {
+		return port;
+	}
+	
+	@Override
+	public String toString() {
+		return host + ":" + port;
+	}
+}
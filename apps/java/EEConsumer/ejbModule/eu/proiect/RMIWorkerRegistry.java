@@ -0,0 +1,123 @@
+package eu.proiect;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Pool of RMI zoom servers the consumer can fan tiles out to.
+ * 
+ * The list is read once from RMI_WORKERS ("host:port,host:port,..."). When it is
+ * missing we fall back to the old pair RMI_SERVER_IP_ZOOM / RMI_SERVER_IP_ZOOM_2,
+ * so an existing docker-compose keeps working.
+ */
+public class RMIWorkerRegistry {
+	static final String RMI_SERVER_PORT_ZOOM = "1099";
+	static final String RMI_SERVER_IP_ZOOM = "localhost";
+	
+	static final String RMI_SERVER_PORT_ZOOM2 = "1100";
+	static final String RMI_SERVER_IP_ZOOM2 = "localhost";
+	
+	// one tile should not be bigger than this (in pixels, input or output), a 2000x2000 image
+	// at zoom <= 1 is one tile per worker
+	static final String TILE_TARGET_PIXELS = "4000000";
+	static final String MAX_TILES = "256";
+	// the zoomed levels of a tile (one reply, or one batch of them) stay under this
+	static final String TILE_MAX_REPLY_BYTES = String.valueOf(TileProtocol.maxFrameBytes / 2);
+	
+	private static final long maxReplyBytes = 
+			Long.parseLong(System.getenv().getOrDefault("TILE_MAX_REPLY_BYTES", TILE_MAX_REPLY_BYTES));
+	
+	private static final List<RMIWorker> workers = loadWorkers();
+	
+	
+	public static List<RMIWorker> getWorkers() {
+		return workers;
+	}
+	
+	public static RMIWorker getWorker(int index) {
+		return workers.get(Math.floorMod(index, workers.size()));
+	}
+	
+	public static int size() {
+		return workers.size();
+	}
+	
+	/**
+	 * How many horizontal tiles an image of this size is cut into. We keep at least one
+	 * tile per worker, add more for big images and round up to a multiple of the
+	 * worker count so every node gets the same share.
+	 */
+	public static int computeTileCount(int imgWidth, int imgHeight) {
+		return computeTileCount(imgWidth, imgHeight, 1, new double[] { 1 });
+	}
+	
+	/**
+	 * The same for the zoom factors the workers apply: a tile counts with the bigger of
+	 * its input and its largest output, and the output of all its levels together stays
+	 * under TILE_MAX_REPLY_BYTES (above MAX_TILES if need be). No tile is thinner than
+	 * minTileRows (so it still has an output row when shrunk).
+	 */
+	public static int computeTileCount(int imgWidth, int imgHeight, int minTileRows, double[] zooms) {
+		long targetPixels = Long.parseLong(System.getenv().getOrDefault("TILE_TARGET_PIXELS", TILE_TARGET_PIXELS));
+		int maxTiles = Integer.parseInt(System.getenv().getOrDefault("MAX_TILES", MAX_TILES));
+		int workerCount = workers.size();
+		
+		long pixels = (long) imgWidth * imgHeight;
+		double maxScale = 1;
+		double outScale = 0;
+		for (double zoom : zooms) {
+			maxScale = Math.max(maxScale, zoom * zoom);
+			outScale += zoom * zoom;
+		}
+		long byPixels = (long) Math.ceil(pixels * maxScale / targetPixels);
+		long byReply = (long) Math.ceil(4.0 * pixels * outScale / maxReplyBytes);
+		
+		int tiles = (int) Math.max(workerCount, Math.min(byPixels, maxTiles));
+		// a tile over the reply limit could not come back at all
+		tiles = (int) Math.max(tiles, Math.min(byReply, imgHeight));
+		tiles = ((tiles + workerCount - 1) / workerCount) * workerCount;
+		
+		return Math.max(1, Math.min(tiles, imgHeight / Math.max(1, minTileRows)));
+	}
+	
+	
+	public static long getMaxReplyBytes() {
+		return maxReplyBytes;
+	}
+	
+	
+	private static List<RMIWorker> loadWorkers() {
+		List<RMIWorker> list = new ArrayList<>();
+		String configured = System.getenv("RMI_WORKERS");
+		
+		if (configured != null && !configured.isBlank()) {
+			for (String entry : configured.split(",")) {
+				entry = entry.trim();
+				if (entry.isEmpty()) {
+					continue;
+				}
+				
+				int sep = entry.lastIndexOf(':');
+				if (sep < 0) {
+					list.add(new RMIWorker(entry, Integer.parseInt(RMI_SERVER_PORT_ZOOM)));
+				} else {
+					list.add(new RMIWorker(entry.substring(0, sep), Integer.parseInt(entry.substring(sep + 1))));
+				}
+			}
+		}
+		
+		if (list.isEmpty()) {
+			list.add(new RMIWorker(
+					System.getenv().getOrDefault("RMI_SERVER_IP_ZOOM", RMI_SERVER_IP_ZOOM),
+					Integer.parseInt(System.getenv().getOrDefault("RMI_SERVER_PORT_ZOOM", RMI_SERVER_PORT_ZOOM))));
+			list.add(new RMIWorker(
+					System.getenv().getOrDefault("RMI_SERVER_IP_ZOOM_2", RMI_SERVER_IP_ZOOM2),
+					Integer.parseInt(System.getenv().getOrDefault("RMI_SERVER_PORT_ZOOM_2", RMI_SERVER_PORT_ZOOM2))));
+		}
+		
+		System.out.println("RMI workers registered: " + list);
+		
+		return Collections.unmodifiableList(list);
+	}
+}
@@ -0,0 +1,85 @@
+package eu.proiect;
+
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Index of images already processed, keyed by SHA-256 of the upload, zoom factor and the
+ * variant of the pipeline that produced them: the effective resampling filter (the upload's,
+ * or RESAMPLE_FILTER of the workers) and DOWNSCALE_MODE.
+ * 
+ * A bounded LRU in memory sits in front of the images table (content_hash, zoom), the
+ * table is the source of truth: a miss in memory is looked up there before the image
+ * is processed again. Rows written before the variant was stored are not reused.
+ */
+public class ResultCache {
+	static final String RESULT_CACHE_SIZE = "10000";
+	// the defaults of the workers, set the same values here as on the workers
+	static final String RESAMPLE_FILTER = "bicubic";
+	static final String DOWNSCALE_MODE = "halving";
+	
+	private static final int maxEntries = 
+			Integer.parseInt(System.getenv().getOrDefault("RESULT_CACHE_SIZE", RESULT_CACHE_SIZE));
+	
+	private static final Map<String, Long> cache = new LinkedHashMap<>(256, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > maxEntries;
+		}
+	};
+	
+	
+	/**
+	 * Id of the row holding this image at this zoom, or null when it was never processed.
+	 */
+	public static Long lookup(String contentHash, double zoom, String filter) throws SQLException {
+		String key = key(contentHash, zoom, filter);
+		
+		synchronized (cache) {
+			Long id = cache.get(key);
+			if (id != null) {
+				return id;
+			}
+		}
+		
+		Long id = db.findByHash(contentHash, zoom, variant(filter));
+		if (id != null) {
+			put(contentHash, zoom, filter, id);
+		}
+		
+		return id;
+	}
+	
+	public static void put(String contentHash, double zoom, String filter, long id) {
+		synchronized (cache) {
+			cache.put(key(contentHash, zoom, filter), id);
+		}
+	}
+	
+	
+	/**
+	 * The filter the workers apply: the upload's, or their default when it has none.
+	 */
+	public static String effectiveFilter(String filter) {
+		String name = filter != null && !filter.isBlank() ? filter : System.getenv().getOrDefault("RESAMPLE_FILTER", RESAMPLE_FILTER);
+		return name.toLowerCase();
+	}
+	
+	/**
+	 * Everything besides the upload and the zoom that changes the output pixels, e.g.
+	 * "bicubic/halving".
+	 */
+	public static String variant(String filter) {
+		String downscale = System.getenv().getOrDefault("DOWNSCALE_MODE", DOWNSCALE_MODE).toLowerCase();
+		
+		return effectiveFilter(filter) + "/" + downscale;
+	}
+	
+	
+	private static String key(String contentHash, double zoom, String filter) {
+		return contentHash + ":" + zoom + ":" + variant(filter);
+	}
+}
@@ -0,0 +1,132 @@
+package eu.proiect;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a 24 bit BMP straight to a file, tile by tile, without a canvas of the whole image.
+ * 
+ * The size of the output is known before the tiles come back, so the header is written
+ * first and every row goes to its own offset in the file. Tiles can arrive in any order
+ * and from several threads (positional writes on the channel).
+ */
+public class StreamingBmpWriter implements Closeable {
+	private static final int FILE_HEADER_SIZE = 14;
+	private static final int INFO_HEADER_SIZE = 40;
+	private static final int PIXEL_OFFSET = FILE_HEADER_SIZE + INFO_HEADER_SIZE;
+	
+	private final FileChannel channel;
+	private final int width;
+	private final int height;
+	private final int rowStride;
+	
+	
+	public StreamingBmpWriter(Path file, int width, int height) throws IOException {
+		if (width <= 0 || height <= 0) {
+			throw new IOException("Invalid BMP size: " + width + "x" + height);
+		}
+		
+		this.width = width;
+		this.height = height;
+		// every BMP row is padded to 4 bytes
+		this.rowStride = (width * 3 + 3) & ~3;
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, 
+				StandardOpenOption.TRUNCATE_EXISTING);
+		
+		writeHeader();
+	}
+	
+	public int getWidth() {
+		return width;
+	}
+	
+	public int getHeight() {
+		return height;
+	}
+	
+	/**
+	 * Writes rows [y, y + rows) of the output from a packed 0xRRGGBB raster. A tile that is
+	 * shorter than expected (rounding on the worker) repeats its last row, a narrower one
+	 * is padded with black, a bigger one is clipped.
+	 */
+	public void writeRows(int y, int rows, int tileWidth, int tileHeight, int[] pixels) throws IOException {
+		ByteBuffer row = ByteBuffer.allocate(rowStride);
+		int copyWidth = Math.min(width, tileWidth);
+		
+		for (int r = 0; r < rows && y + r < height; r++) {
+			row.clear();
+			
+			if (tileHeight > 0) {
+				int src = Math.min(r, tileHeight - 1) * tileWidth;
+				for (int x = 0; x < copyWidth; x++) {
+					int rgb = pixels[src + x];
+					row.put((byte) rgb);
+					row.put((byte) (rgb >> 8));
+					row.put((byte) (rgb >> 16));
+				}
+			}
+			
+			// padding and missing pixels stay black
+			while (row.hasRemaining()) {
+				row.put((byte) 0);
+			}
+			row.flip();
+			
+			// BMP is stored bottom-up
+			long position = PIXEL_OFFSET + (long) (height - 1 - (y + r)) * rowStride;
+			while (row.hasRemaining()) {
+				position += channel.write(row, position);
+			}
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		channel.force(false);
+		channel.close();
+	}
+	
+	
+	private void writeHeader() throws IOException {
+		long imageSize = (long) rowStride * height;
+		long fileSize = PIXEL_OFFSET + imageSize;
+		
+		ByteBuffer header = ByteBuffer.allocate(PIXEL_OFFSET).order(ByteOrder.LITTLE_ENDIAN);
+		
+		// BITMAPFILEHEADER
+		header.put((byte) 'B').put((byte) 'M');
+		header.putInt(fileSize > 0xFFFFFFFFL ? 0 : (int) fileSize);
+		header.putShort((short) 0);
+		header.putShort((short) 0);
+		header.putInt(PIXEL_OFFSET);
+		
+		// BITMAPINFOHEADER
+		header.putInt(INFO_HEADER_SIZE);
+		header.putInt(width);
+		header.putInt(height);
+		header.putShort((short) 1);  // planes
+		header.putShort((short) 24); // bits per pixel
+		header.putInt(0);            // BI_RGB, no compression
+		header.putInt(imageSize > 0xFFFFFFFFL ? 0 : (int) imageSize);
+		header.putInt(2835);         // 72 DPI
+		header.putInt(2835);
+		header.putInt(0);
+		header.putInt(0);
+		header.flip();
+		
+		long position = 0;
+		while (header.hasRemaining()) {
+			position += channel.write(header, position);
+		}
+		
+		// reserve the whole file, rows are filled in any order
+		if (channel.size() < fileSize) {
+			channel.write(ByteBuffer.wrap(new byte[1]), fileSize - 1);
+		}
+	}
+}
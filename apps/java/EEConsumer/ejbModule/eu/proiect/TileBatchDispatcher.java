@@ -0,0 +1,255 @@
+package eu.proiect;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends the tiles of one image in batches. Every worker gets a driver that takes the next
+ * RMI_BATCH_TILES tiles from a shared queue (fewer when their pixels, in or out, would be
+ * over TILE_MAX_REPLY_BYTES together), sends them in one startBatch call and stitches
+ * each tile as takeBatchResults returns it; then it takes more. A fast worker simply comes
+ * back for tiles sooner, so with small tiles the work spreads by speed, not by count.
+ *
+ * Tiles of a worker that fails go back to the queue for the others; a tile that failed on
+ * as many workers as there are fails the image. A batch that returns nothing for
+ * RMI_BATCH_TIMEOUT_MS counts as failed on that worker.
+ */
+public class TileBatchDispatcher {
+	// 0 = one call per tile (ImageListener.processTileOnRMIServer)
+	static final String RMI_BATCH_TILES = "4";
+	static final String RMI_BATCH_POLL_MS = "1000";
+	static final String RMI_BATCH_TIMEOUT_MS = "300000";
+	
+	private static final int batchTiles = Integer.parseInt(System.getenv().getOrDefault("RMI_BATCH_TILES", RMI_BATCH_TILES));
+	private static final long pollMs = Long.parseLong(System.getenv().getOrDefault("RMI_BATCH_POLL_MS", RMI_BATCH_POLL_MS));
+	private static final long batchTimeoutMs = Long.parseLong(System.getenv().getOrDefault("RMI_BATCH_TIMEOUT_MS", RMI_BATCH_TIMEOUT_MS));
+	
+	
+	@FunctionalInterface
+	public interface BatchEncoder {
+		TileBatch encode(List<Integer> tileIndexes) throws IOException;
+	}
+	
+	/**
+	 * Writes a finished tile; returns an error result when it could not.
+	 */
+	@FunctionalInterface
+	public interface TileSink {
+		ImageProcessingResult write(int tileIndex, ImageProcessingResult[] levels) throws IOException;
+	}
+	
+	
+	public static boolean isEnabled() {
+		return batchTiles > 0;
+	}
+	
+	
+	private final int tileCount;
+	private final int perBatch;
+	private final BatchEncoder encoder;
+	private final TileSink sink;
+	private final long busyMaxWaitMs;
+	
+	private final ConcurrentLinkedQueue<Integer> pending = new ConcurrentLinkedQueue<>();
+	private final Map<Integer, Integer> failures = new ConcurrentHashMap<>();
+	private final AtomicInteger done = new AtomicInteger();
+	private volatile String failure;
+	
+	
+	// tileBytes: the bigger of the pixels sent and the zoomed levels returned for one tile
+	public TileBatchDispatcher(int tileCount, long tileBytes, BatchEncoder encoder, TileSink sink, long busyMaxWaitMs) {
+		this.tileCount = tileCount;
+		this.perBatch = (int) Math.max(1, Math.min(batchTiles, RMIWorkerRegistry.getMaxReplyBytes() / Math.max(1, tileBytes)));
+		this.encoder = encoder;
+		this.sink = sink;
+		this.busyMaxWaitMs = busyMaxWaitMs;
+		
+		for (int i = 0; i < tileCount; i++) {
+			pending.add(i);
+		}
+	}
+	
+	/**
+	 * Returns once every tile is stitched. A driver that gave up can leave tiles behind
+	 * after the others finished, those get a new round of drivers (one round per worker).
+	 */
+	public void run() throws IOException, InterruptedException {
+		int workers = RMIWorkerRegistry.size();
+		
+		for (int round = 0; round <= workers && done.get() < tileCount && failure == null; round++) {
+			List<Future<Void>> drivers = new ArrayList<>(workers);
+			
+			try {
+				for (RMIWorker worker : WorkerLoad.candidates(round)) {
+					drivers.add(ProcessingExecutor.submitTile(() -> {
+						drive(worker);
+						return null;
+					}));
+				}
+				for (Future<Void> driver : drivers) {
+					driver.get();
+				}
+			} catch (ExecutionException e) {
+				failure = String.valueOf(e.getCause());
+			} finally {
+				// on failure or interruption the other drivers stop as well
+				drivers.forEach(driver -> driver.cancel(true));
+			}
+		}
+		
+		if (failure != null) {
+			throw new IOException(failure);
+		}
+		if (done.get() < tileCount) {
+			throw new IOException((tileCount - done.get()) + " of " + tileCount + " tiles could not be processed by any worker");
+		}
+	}
+	
+	
+	private void drive(RMIWorker worker) throws IOException, InterruptedException {
+		long busySince = 0;
+		
+		while (failure == null && !Thread.currentThread().isInterrupted()) {
+			List<Integer> tiles = new ArrayList<>(perBatch);
+			Integer next;
+			while (tiles.size() < perBatch && (next = pending.poll()) != null) {
+				tiles.add(next);
+			}
+			if (tiles.isEmpty()) {
+				return;
+			}
+			
+			long encodeStart = System.nanoTime();
+			TileBatch batch = encoder.encode(tiles);
+			Metrics.observe("tile_encode", encodeStart, null);
+			
+			long batchStart = System.nanoTime();
+			long batchId;
+			try {
+				batchId = RMIStubCache.invoke(worker, remote -> remote.startBatch(batch));
+			} catch (Exception e) {
+				// this worker is gone for now, the other drivers take its tiles
+				pending.addAll(tiles);
+				Metrics.increment("rmi_calls_total", "worker=\"" + worker + "\",outcome=\"error\"");
+				System.out.println("RMI worker " + worker + " failed to start a batch: " + e.getMessage());
+				return;
+			}
+			
+			if (batchId <= 0) {
+				pending.addAll(tiles);
+				Metrics.increment("rmi_calls_total", "worker=\"" + worker + "\",outcome=\"busy\"");
+				WorkerLoad.markBusy(worker, -batchId);
+				
+				long now = System.currentTimeMillis();
+				busySince = busySince == 0 ? now : busySince;
+				if (now - busySince > busyMaxWaitMs) {
+					System.out.println("RMI worker " + worker + " busy for " + (now - busySince) + " ms, leaving its tiles to the others");
+					return;
+				}
+				Thread.sleep(Math.max(10, -batchId));
+				continue;
+			}
+			busySince = 0;
+			
+			if (!collect(worker, batchId, tiles)) {
+				return;
+			}
+			Metrics.observe("rmi_batch", batchStart, null);
+		}
+	}
+	
+	/**
+	 * Stitches the tiles of one batch as they finish. false when the worker went away
+	 * or stalled during the batch: whatever it did not return is back in the queue.
+	 */
+	private boolean collect(RMIWorker worker, long batchId, List<Integer> tiles) throws IOException {
+		Set<Integer> remaining = new HashSet<>(tiles);
+		long lastProgress = System.currentTimeMillis();
+		
+		while (!remaining.isEmpty() && failure == null) {
+			if (System.currentTimeMillis() - lastProgress > batchTimeoutMs) {
+				Metrics.increment("rmi_calls_total", "worker=\"" + worker + "\",outcome=\"timeout\"");
+				System.out.println("Batch " + batchId + " on RMI worker " + worker + " returned nothing for " + batchTimeoutMs 
+						+ " ms, " + remaining.size() + " tiles go back to the queue");
+				for (int tileIndex : remaining) {
+					retry(tileIndex, "Tile " + tileIndex + " timed out on RMI worker " + worker);
+				}
+				return false;
+			}
+			
+			TileResult[] results;
+			try {
+				results = RMIStubCache.invoke(worker, remote -> remote.takeBatchResults(batchId, pollMs));
+			} catch (Exception e) {
+				results = null;
+				System.out.println("RMI worker " + worker + " failed during batch " + batchId + ": " + e.getMessage());
+			}
+			if (results == null) {
+				Metrics.increment("rmi_calls_total", "worker=\"" + worker + "\",outcome=\"error\"");
+				System.out.println("Lost batch " + batchId + " on RMI worker " + worker + ", " + remaining.size() + " tiles go back to the queue");
+				pending.addAll(remaining);
+				return false;
+			}
+			
+			for (TileResult result : results) {
+				int tileIndex = result.getTileIndex();
+				if (!remaining.remove(tileIndex)) {
+					continue;
+				}
+				lastProgress = System.currentTimeMillis();
+				
+				ImageProcessingResult[] levels = result.getLevels();
+				ImageProcessingResult error = firstError(levels);
+				if (error != null) {
+					Metrics.increment("rmi_calls_total", "worker=\"" + worker + "\",outcome=\"failed\"");
+					retry(tileIndex, "RMI error on tile " + tileIndex + " (" + worker + "): " + error.getErrorMessage());
+					continue;
+				}
+				
+				Metrics.increment("rmi_calls_total", "worker=\"" + worker + "\",outcome=\"ok\"");
+				Metrics.increment("rmi_batch_tiles_total", "worker=\"" + worker + "\"");
+				
+				error = sink.write(tileIndex, levels);
+				if (error != null) {
+					failure = "Tile " + tileIndex + ": " + error.getErrorMessage();
+					return true;
+				}
+				done.incrementAndGet();
+			}
+		}
+		
+		return true;
+	}
+	
+	private void retry(int tileIndex, String error) {
+		if (failures.merge(tileIndex, 1, Integer::sum) >= RMIWorkerRegistry.size()) {
+			failure = error;
+		} else {
+			pending.add(tileIndex);
+		}
+	}
+	
+	private static ImageProcessingResult firstError(ImageProcessingResult[] levels) {
+		if (levels == null || levels.length == 0) {
+			return new ImageProcessingResult(null, "Missing zoom levels in worker result");
+		}
+		for (ImageProcessingResult level : levels) {
+			if (level == null) {
+				return new ImageProcessingResult(null, "Missing zoom level in worker result");
+			}
+			if (level.getErrorMessage() != null) {
+				return level;
+			}
+		}
+		return null;
+	}
+}
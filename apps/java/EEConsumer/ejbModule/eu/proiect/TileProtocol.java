@@ -0,0 +1,506 @@
+package eu.proiect;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Framed binary protocol of the NIO tile transport (same class in the consumer and the
+ * worker), little endian:
+ *
+ *   int length (bytes after this field), int requestId, byte type, payload
+ *
+ * Requests:
+ * - RASTER_LEVELS: int width, int height, int n, double[n] zooms, rows, str filter,
+ *   str uploadId, int[width * height] pixels
+ * - ENCODED: int n, double[n] zooms, str typeImage, str uploadId, bytes image
+ * - STATUS: nothing
+ * - START_BATCH: byte raster, str uploadId, int n, double[n] zooms, str filter,
+ *   str typeImage, int width, int tiles, then per tile int tileIndex and either
+ *   int height, rows, pixels (raster) or bytes image
+ * - TAKE_RESULTS: long batchId, long maxWaitMillis
+ *
+ * Replies carry the requestId of their request, so many requests can be in flight on one
+ * connection and come back in any order:
+ * - RESULTS: levels, i.e. int n, then per level byte kind and RASTER (int width,
+ *   int height, pixels), IMAGE (bytes), ERROR (str) or BUSY (long retryAfterMillis, str)
+ * - STATUS_REPLY: the WorkerStatus fields
+ * - BATCH_STARTED: long batchId (<= 0: busy, as ImageProcessorInterface.startBatch)
+ * - BATCH_RESULTS: int tiles (-1: unknown batch), then per tile int tileIndex, levels
+ *
+ * A request the worker cannot take (malformed, or no memory for it) is answered with a
+ * RESULTS of one ERROR or BUSY level, whatever its type. A reply over NIO_MAX_FRAME_BYTES
+ * is never built: the worker answers an ERROR level instead (levelsLength).
+ *
+ * rows is a TileRows: int n (-1 for null), then per level int outRows, double rowStep,
+ * double rowOrigin.
+ *
+ * str is int length (-1 for null) and UTF-8, bytes is int length and the bytes. Pixels and
+ * image bytes go in buffers of their own, written together with the rest in one
+ * gathering write.
+ */
+public class TileProtocol {
+	public static final byte RASTER_LEVELS = 1;
+	public static final byte ENCODED = 2;
+	public static final byte STATUS = 3;
+	public static final byte START_BATCH = 4;
+	public static final byte TAKE_RESULTS = 5;
+	
+	public static final byte RESULTS = 0x41;
+	public static final byte STATUS_REPLY = 0x42;
+	public static final byte BATCH_STARTED = 0x43;
+	public static final byte BATCH_RESULTS = 0x44;
+	
+	static final byte KIND_RASTER = 0;
+	static final byte KIND_IMAGE = 1;
+	static final byte KIND_ERROR = 2;
+	static final byte KIND_BUSY = 3;
+	
+	// requestId and type, in every frame after the length field
+	public static final int HEAD_BYTES = 5;
+	
+	static final String NIO_MAX_FRAME_BYTES = String.valueOf(512 * 1024 * 1024);
+	
+	public static final int maxFrameBytes = 
+			Integer.parseInt(System.getenv().getOrDefault("NIO_MAX_FRAME_BYTES", NIO_MAX_FRAME_BYTES));
+	
+	
+	/**
+	 * A frame being built: small fields go in pooled segments, pixels and image bytes in
+	 * buffers of their own. release() returns all of them to the pool once written.
+	 */
+	public static class FrameWriter {
+		private static final int SEGMENT = 4096;
+		
+		private final List<ByteBuffer> buffers = new ArrayList<>();
+		private ByteBuffer segment;
+		private long length;
+		
+		public FrameWriter(int requestId, byte type) {
+			segment = DirectBufferPool.acquire(SEGMENT);
+			segment.putInt(0);
+			segment.putInt(requestId);
+			segment.put(type);
+		}
+		
+		public FrameWriter putByte(byte value) {
+			room(1).put(value);
+			return this;
+		}
+		
+		public FrameWriter putInt(int value) {
+			room(4).putInt(value);
+			return this;
+		}
+		
+		public FrameWriter putLong(long value) {
+			room(8).putLong(value);
+			return this;
+		}
+		
+		public FrameWriter putDouble(double value) {
+			room(8).putDouble(value);
+			return this;
+		}
+		
+		public FrameWriter putDoubles(double[] values) {
+			putInt(values.length);
+			for (double value : values) {
+				room(8).putDouble(value);
+			}
+			return this;
+		}
+		
+		public FrameWriter putString(String value) {
+			if (value == null) {
+				return putInt(-1);
+			}
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			putInt(bytes.length);
+			room(bytes.length).put(bytes);
+			return this;
+		}
+		
+		// one bulk copy into a buffer of their own
+		public FrameWriter putInts(int[] values, int count) {
+			ByteBuffer bulk = DirectBufferPool.acquire(4 * count);
+			bulk.asIntBuffer().put(values, 0, count);
+			return add(bulk);
+		}
+		
+		public FrameWriter putBytes(byte[] values) {
+			putInt(values.length);
+			ByteBuffer bulk = DirectBufferPool.acquire(values.length);
+			bulk.put(values).flip();
+			return add(bulk);
+		}
+		
+		/**
+		 * Buffers ready for a gathering write, the length field filled in.
+		 */
+		public ByteBuffer[] finish() throws IOException {
+			segment.flip();
+			if (buffers.isEmpty() || segment.hasRemaining()) {
+				buffers.add(segment);
+			} else {
+				DirectBufferPool.release(segment);
+			}
+			segment = null;
+			
+			length = 0;
+			for (ByteBuffer buffer : buffers) {
+				length += buffer.remaining();
+			}
+			if (length - 4 > maxFrameBytes) {
+				release();
+				throw new IOException("Frame of " + length + " bytes is over NIO_MAX_FRAME_BYTES");
+			}
+			buffers.get(0).putInt(0, (int) (length - 4));
+			
+			return buffers.toArray(new ByteBuffer[0]);
+		}
+		
+		public long getLength() {
+			return length;
+		}
+		
+		public void release() {
+			buffers.forEach(DirectBufferPool::release);
+			buffers.clear();
+			if (segment != null) {
+				DirectBufferPool.release(segment);
+				segment = null;
+			}
+		}
+		
+		
+		private ByteBuffer room(int bytes) {
+			if (segment.remaining() < bytes) {
+				segment.flip();
+				buffers.add(segment);
+				segment = DirectBufferPool.acquire(Math.max(SEGMENT, bytes));
+			}
+			return segment;
+		}
+		
+		private FrameWriter add(ByteBuffer bulk) {
+			segment.flip();
+			buffers.add(segment);
+			buffers.add(bulk);
+			segment = DirectBufferPool.acquire(SEGMENT);
+			return this;
+		}
+	}
+	
+	
+	/**
+	 * Reads the body of a received frame (everything after the length field).
+	 */
+	public static class FrameReader {
+		private final ByteBuffer body;
+		private boolean released;
+		
+		public FrameReader(ByteBuffer body) {
+			this.body = body;
+		}
+		
+		public byte getByte() {
+			return body.get();
+		}
+		
+		public int getInt() {
+			return body.getInt();
+		}
+		
+		public long getLong() {
+			return body.getLong();
+		}
+		
+		public double getDouble() {
+			return body.getDouble();
+		}
+		
+		public double[] getDoubles() throws IOException {
+			double[] values = new double[count(8)];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = body.getDouble();
+			}
+			return values;
+		}
+		
+		public String getString() throws IOException {
+			int length = body.getInt();
+			if (length < 0) {
+				return null;
+			}
+			byte[] bytes = new byte[check(length, 1)];
+			body.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+		
+		// one bulk copy out of the buffer
+		public int[] getInts(int count) throws IOException {
+			int[] values = new int[check(count, 4)];
+			body.asIntBuffer().get(values);
+			body.position(body.position() + 4 * count);
+			return values;
+		}
+		
+		public byte[] getBytes() throws IOException {
+			byte[] values = new byte[count(1)];
+			body.get(values);
+			return values;
+		}
+		
+		// once only, the buffer may already be reused after that
+		public void release() {
+			if (!released) {
+				released = true;
+				DirectBufferPool.release(body);
+			}
+		}
+		
+		
+		private int count(int size) throws IOException {
+			return check(body.getInt(), size);
+		}
+		
+		private int check(int count, int size) throws IOException {
+			if (count < 0 || (long) count * size > body.remaining()) {
+				throw new IOException("Malformed frame: " + count + " x " + size + " bytes, " + body.remaining() + " left");
+			}
+			return count;
+		}
+	}
+	
+	
+	public static FrameWriter rasterRequest(int requestId, int width, int height, int[] pixels, double[] zooms, 
+			TileRows rows, String filter, String uploadId) {
+		FrameWriter frame = new FrameWriter(requestId, RASTER_LEVELS).putInt(width).putInt(height).putDoubles(zooms);
+		return putRows(frame, rows)
+				.putString(filter).putString(uploadId)
+				.putInts(pixels, width * height);
+	}
+	
+	public static FrameWriter putRows(FrameWriter frame, TileRows rows) {
+		if (rows == null) {
+			return frame.putInt(-1);
+		}
+		
+		frame.putInt(rows.levels());
+		for (int level = 0; level < rows.levels(); level++) {
+			frame.putInt(rows.getOutRows(level)).putDouble(rows.getRowStep(level)).putDouble(rows.getRowOrigin(level));
+		}
+		return frame;
+	}
+	
+	public static TileRows readRows(FrameReader frame, int levels) throws IOException {
+		int count = frame.getInt();
+		if (count < 0) {
+			return null;
+		}
+		if (count != levels) {
+			throw new IOException("Malformed frame: rows for " + count + " of " + levels + " levels");
+		}
+		
+		TileRows rows = new TileRows(count);
+		for (int level = 0; level < count; level++) {
+			rows.setLevel(level, frame.getInt(), frame.getDouble(), frame.getDouble());
+		}
+		return rows;
+	}
+	
+	public static FrameWriter encodedRequest(int requestId, byte[] image, String typeImage, double[] zooms, String uploadId) {
+		return new FrameWriter(requestId, ENCODED)
+				.putDoubles(zooms).putString(typeImage).putString(uploadId)
+				.putBytes(image);
+	}
+	
+	public static FrameWriter batchRequest(int requestId, TileBatch batch) {
+		FrameWriter frame = new FrameWriter(requestId, START_BATCH)
+				.putByte((byte) (batch.isRaster() ? 1 : 0)).putString(batch.getUploadId()).putDoubles(batch.getZoomFactors())
+				.putString(batch.getFilter()).putString(batch.getTypeImage()).putInt(batch.getWidth()).putInt(batch.size());
+		
+		for (int slot = 0; slot < batch.size(); slot++) {
+			frame.putInt(batch.getTileIndex(slot));
+			if (batch.isRaster()) {
+				putRows(frame.putInt(batch.getHeight(slot)), batch.getRows(slot))
+						.putInts(batch.getPixels(slot), batch.getWidth() * batch.getHeight(slot));
+			} else {
+				frame.putBytes(batch.getImage(slot));
+			}
+		}
+		return frame;
+	}
+	
+	public static TileBatch readBatch(FrameReader frame) throws IOException {
+		boolean raster = frame.getByte() != 0;
+		String uploadId = frame.getString();
+		double[] zooms = frame.getDoubles();
+		String filter = frame.getString();
+		String typeImage = frame.getString();
+		int width = frame.getInt();
+		int size = frame.getInt();
+		if (size <= 0 || size > 1024 || (raster && width <= 0)) {
+			throw new IOException("Malformed batch: " + size + " tiles of width " + width);
+		}
+		
+		TileBatch batch = raster ? new TileBatch(uploadId, width, zooms, filter, size) : new TileBatch(uploadId, typeImage, zooms, size);
+		for (int slot = 0; slot < size; slot++) {
+			int tileIndex = frame.getInt();
+			if (raster) {
+				int height = frame.getInt();
+				if (height <= 0) {
+					throw new IOException("Malformed batch: tile height " + height);
+				}
+				TileRows rows = readRows(frame, zooms.length);
+				batch.setRaster(slot, tileIndex, height, frame.getInts(width * height), rows);
+			} else {
+				batch.setImage(slot, tileIndex, frame.getBytes());
+			}
+		}
+		return batch;
+	}
+	
+	public static FrameWriter takeRequest(int requestId, long batchId, long maxWaitMillis) {
+		return new FrameWriter(requestId, TAKE_RESULTS).putLong(batchId).putLong(maxWaitMillis);
+	}
+	
+	public static FrameWriter batchStarted(int requestId, long batchId) {
+		return new FrameWriter(requestId, BATCH_STARTED).putLong(batchId);
+	}
+	
+	public static FrameWriter batchResults(int requestId, TileResult[] tiles) {
+		if (tiles == null) {
+			return new FrameWriter(requestId, BATCH_RESULTS).putInt(-1);
+		}
+		
+		FrameWriter frame = new FrameWriter(requestId, BATCH_RESULTS).putInt(tiles.length);
+		for (TileResult tile : tiles) {
+			frame.putInt(tile.getTileIndex());
+			putLevels(frame, tile.getLevels());
+		}
+		return frame;
+	}
+	
+	public static TileResult[] readBatchResults(FrameReader frame, String uploadId) throws IOException {
+		int count = frame.getInt();
+		if (count < 0) {
+			return null;
+		}
+		if (count > 1024) {
+			throw new IOException("Malformed frame: " + count + " tiles");
+		}
+		
+		TileResult[] tiles = new TileResult[count];
+		for (int i = 0; i < count; i++) {
+			int tileIndex = frame.getInt();
+			tiles[i] = new TileResult(tileIndex, readResults(frame, uploadId));
+		}
+		return tiles;
+	}
+	
+	/**
+	 * Bytes the levels take in a RESULTS or BATCH_RESULTS frame, known before the frame is
+	 * built: a RESULTS body is HEAD_BYTES + levelsLength, a BATCH_RESULTS body HEAD_BYTES + 4
+	 * and 4 + levelsLength per tile.
+	 */
+	public static long levelsLength(ImageProcessingResult[] results) {
+		long length = 4;
+		
+		for (ImageProcessingResult result : results) {
+			length += 1;
+			if (result.isBusy()) {
+				length += 8 + stringLength(result.getErrorMessage());
+			} else if (result.getErrorMessage() != null) {
+				length += stringLength(result.getErrorMessage());
+			} else if (result.getPixels() != null) {
+				length += 8 + 4L * result.getWidth() * result.getHeight();
+			} else {
+				length += 4 + result.getImage().length;
+			}
+		}
+		return length;
+	}
+	
+	private static long stringLength(String value) {
+		return 4 + (value == null ? 0 : value.getBytes(StandardCharsets.UTF_8).length);
+	}
+	
+	public static FrameWriter results(int requestId, ImageProcessingResult[] results) {
+		return putLevels(new FrameWriter(requestId, RESULTS), results);
+	}
+	
+	private static FrameWriter putLevels(FrameWriter frame, ImageProcessingResult[] results) {
+		frame.putInt(results.length);
+		
+		for (ImageProcessingResult result : results) {
+			if (result.isBusy()) {
+				frame.putByte(KIND_BUSY).putLong(result.getRetryAfterMillis()).putString(result.getErrorMessage());
+			} else if (result.getErrorMessage() != null) {
+				frame.putByte(KIND_ERROR).putString(result.getErrorMessage());
+			} else if (result.getPixels() != null) {
+				frame.putByte(KIND_RASTER).putInt(result.getWidth()).putInt(result.getHeight())
+						.putInts(result.getPixels(), result.getWidth() * result.getHeight());
+			} else {
+				frame.putByte(KIND_IMAGE).putBytes(result.getImage());
+			}
+		}
+		return frame;
+	}
+	
+	public static ImageProcessingResult[] readResults(FrameReader frame, String uploadId) throws IOException {
+		int count = frame.getInt();
+		if (count < 0 || count > 1024) {
+			throw new IOException("Malformed frame: " + count + " results");
+		}
+		
+		ImageProcessingResult[] results = new ImageProcessingResult[count];
+		for (int i = 0; i < count; i++) {
+			byte kind = frame.getByte();
+			
+			if (kind == KIND_RASTER) {
+				int width = frame.getInt();
+				int height = frame.getInt();
+				results[i] = new ImageProcessingResult(uploadId, width, height, frame.getInts(width * height));
+			} else if (kind == KIND_IMAGE) {
+				results[i] = new ImageProcessingResult(uploadId, frame.getBytes());
+			} else if (kind == KIND_BUSY) {
+				long retryAfter = frame.getLong();
+				results[i] = ImageProcessingResult.busy(uploadId, frame.getString(), retryAfter);
+			} else if (kind == KIND_ERROR) {
+				results[i] = new ImageProcessingResult(uploadId, frame.getString());
+			} else {
+				throw new IOException("Malformed frame: result kind " + kind);
+			}
+		}
+		return results;
+	}
+	
+	public static FrameWriter status(int requestId, WorkerStatus status) {
+		return new FrameWriter(requestId, STATUS_REPLY)
+				.putInt(status.getParallelism()).putInt(status.getRunning()).putInt(status.getQueued()).putInt(status.getQueueCapacity())
+				.putLong(status.getMemoryBudget()).putLong(status.getMemoryReserved()).putLong(status.getEstimatedWaitMillis());
+	}
+	
+	public static WorkerStatus readStatus(FrameReader frame) {
+		return new WorkerStatus(frame.getInt(), frame.getInt(), frame.getInt(), frame.getInt(), 
+				frame.getLong(), frame.getLong(), frame.getLong());
+	}
+	
+	/**
+	 * Writes every buffer of the frame on a blocking channel.
+	 */
+	public static void write(GatheringByteChannel channel, ByteBuffer[] buffers) throws IOException {
+		long left = 0;
+		for (ByteBuffer buffer : buffers) {
+			left += buffer.remaining();
+		}
+		while (left > 0) {
+			left -= channel.write(buffers);
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package eu.proiect;
+
+import java.io.Serializable;
+
+/**
+ * Where a raster tile sits on the output grid of the whole image (same class in the
+ * consumer and the worker), one entry per zoom level. The tile comes with extra rows of
+ * context above and below (the halo), so the kernel near its edges reads the real
+ * neighbours instead of clamping; the worker only produces the tile's own output rows.
+ *
+ * Output row i of the tile is centred on source row rowOrigin + (i + 0.5) * rowStep of
+ * the raster as sent, halo included.
+ */
+public class TileRows implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    private final int[] outRows;
+    private final double[] rowSteps;
+    private final double[] rowOrigins;
+    
+    public TileRows(int levels) {
+        this.outRows = new int[levels];
+        this.rowSteps = new double[levels];
+        this.rowOrigins = new double[levels];
+    }
+    
+    public void setLevel(int level, int rows, double rowStep, double rowOrigin) {
+        outRows[level] = rows;
+        rowSteps[level] = rowStep;
+        rowOrigins[level] = rowOrigin;
+    }
+    
+    public int levels() {
+        return outRows.length;
+    }
+    
+    public int getOutRows(int level) {
+        return outRows[level];
+    }
+    
+    public double getRowStep(int level) {
+        return rowSteps[level];
+    }
+    
+    public double getRowOrigin(int level) {
+        return rowOrigins[level];
+    }
+}
@@ -1,11 +1,20 @@
 package eu.proiect;
 
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
 
 
 import javax.imageio.ImageIO;
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
 
 public class Utils {
 
@@ -33,6 +42,86 @@ public class Utils {
 	}
 	
 	
+    /**
+     * Hex SHA-256 of the uploaded bytes, the identity of an image in the result cache.
+     */
+    public static String sha256Hex(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            // every JRE ships SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    
+    /**
+     * Zoom levels of a message: the "zooms" list when present, else the single zoom.
+     * Duplicates are removed, the order of the request is kept.
+     */
+    public static double[] parseZooms(String zooms, double zoom) {
+        if (zooms == null || zooms.isBlank()) {
+            return new double[] { zoom };
+        }
+        
+        return Arrays.stream(zooms.split(","))
+                .map(String::trim)
+                .filter(value -> !value.isEmpty())
+                .mapToDouble(Double::parseDouble)
+                .distinct()
+                .toArray();
+    }
+    
+    /**
+     * Reads the body of a message into the array in 1 MB chunks and returns the hex
+     * SHA-256 of it, so the upload is hashed while it is read and not in a second pass.
+     */
+    public static String readBody(BytesMessage message, byte[] target) throws JMSException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[1024 * 1024];
+            int offset = 0;
+            
+            while (offset < target.length) {
+                int read = message.readBytes(buffer, Math.min(buffer.length, target.length - offset));
+                if (read <= 0) {
+                    break;
+                }
+                
+                System.arraycopy(buffer, 0, target, offset, read);
+                digest.update(buffer, 0, read);
+                offset += read;
+            }
+            
+            if (offset != target.length) {
+                throw new JMSException("Message body ended after " + offset + " of " + target.length + " bytes");
+            }
+            
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Hex SHA-256 of a file, read in chunks (the zoomed image does not fit in memory).
+     */
+    public static String sha256Hex(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[1024 * 1024];
+            int read;
+            
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    
     public static byte[] imageToBytes(BufferedImage image, String format) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         ImageIO.write(image, format, baos);
@@ -43,32 +132,41 @@ public class Utils {
 
 
 
-    public static byte[] combineImages(byte[] leftBytes, byte[] rightBytes, String format) throws IOException {
-        BufferedImage leftImage = ImageIO.read(new ByteArrayInputStream(leftBytes));
-        BufferedImage rightImage = ImageIO.read(new ByteArrayInputStream(rightBytes));
+    /**
+     * Copies the rows [y0, y0 + height) of an image as packed 0xRRGGBB ints, without
+     * going through the color model for the usual BMP / RGB layouts.
+     */
+    public static int[] toPackedRGB(BufferedImage image, int y0, int height) {
+        int width = image.getWidth();
+        int[] pixels = new int[width * height];
         
-        if (leftImage == null || rightImage == null) {
-            throw new IOException("Failed to read processed image halves");
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB: {
+                int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+                System.arraycopy(data, y0 * width, pixels, 0, pixels.length);
+                if (image.getType() == BufferedImage.TYPE_INT_ARGB) {
+                    for (int i = 0; i < pixels.length; i++) {
+                        pixels[i] &= 0xFFFFFF;
+                    }
+                }
+                return pixels;
+            }
+            case BufferedImage.TYPE_3BYTE_BGR: {
+                byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+                int src = y0 * width * 3;
+                for (int i = 0; i < pixels.length; i++, src += 3) {
+                    pixels[i] = (data[src + 2] & 0xFF) << 16 | (data[src + 1] & 0xFF) << 8 | (data[src] & 0xFF);
+                }
+                return pixels;
+            }
+            default:
+                image.getRGB(0, y0, width, height, pixels, 0, width);
+                for (int i = 0; i < pixels.length; i++) {
+                    pixels[i] &= 0xFFFFFF;
+                }
+                return pixels;
         }
-        
-        int totalWidth = leftImage.getWidth() + rightImage.getWidth();
-        int maxHeight = Math.max(leftImage.getHeight(), rightImage.getHeight());
-        
-        System.out.println("Combining: left=" + leftImage.getWidth() + "x" + leftImage.getHeight() + 
-                           ", right=" + rightImage.getWidth() + "x" + rightImage.getHeight());
-        
-
-        BufferedImage combined = new BufferedImage(totalWidth, maxHeight, BufferedImage.TYPE_INT_RGB);
-        Graphics2D g = combined.createGraphics();
-        
-  
-        g.drawImage(leftImage, 0, 0, null);
-        
-        g.drawImage(rightImage, leftImage.getWidth(), 0, null);
-        
-        g.dispose();
-        
-        return imageToBytes(combined, format);
     }
 	
 }
@@ -0,0 +1,134 @@
+package eu.proiect;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the consumer knows about the load of every RMI worker: its last getStatus() and,
+ * after a busy answer, the time until which the worker is skipped. Tiles go to the worker
+ * with the shortest estimated wait.
+ * 
+ * The statuses are asked in the background every WORKER_STATUS_TTL_MS, one thread per
+ * worker, so a worker that is down or slow to answer only delays its own status; picking
+ * a worker for a tile reads what is known and never waits for the network.
+ */
+public class WorkerLoad {
+	static final String WORKER_STATUS_TTL_MS = "500";
+	
+	private static final long statusTtlMs = 
+			Long.parseLong(System.getenv().getOrDefault("WORKER_STATUS_TTL_MS", WORKER_STATUS_TTL_MS));
+	
+	private static final Map<RMIWorker, Load> loads = new ConcurrentHashMap<>();
+	
+	private static ScheduledExecutorService poller;
+	
+	
+	static class Load {
+		volatile WorkerStatus status;
+		volatile long busyUntil;
+	}
+	
+	
+	public static synchronized void start() {
+		if (poller != null) {
+			return;
+		}
+		
+		List<RMIWorker> workers = RMIWorkerRegistry.getWorkers();
+		poller = Executors.newScheduledThreadPool(workers.size(), runnable -> {
+			Thread thread = new Thread(runnable, "worker-status");
+			thread.setDaemon(true);
+			return thread;
+		});
+		for (RMIWorker worker : workers) {
+			poller.scheduleWithFixedDelay(() -> refresh(worker), 0, statusTtlMs, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	
+	/**
+	 * Every worker, best first: not refusing calls, then by estimated wait. Ties keep the
+	 * round robin order that starts at the tile index, so idle workers share the tiles.
+	 */
+	public static List<RMIWorker> candidates(int tileIndex) {
+		start();
+		
+		int count = RMIWorkerRegistry.size();
+		List<RMIWorker> order = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			order.add(RMIWorkerRegistry.getWorker(tileIndex + i));
+		}
+		
+		long now = System.currentTimeMillis();
+		Map<RMIWorker, Long> waits = new HashMap<>();
+		for (RMIWorker worker : order) {
+			waits.put(worker, estimatedWait(worker, now));
+		}
+		order.sort(Comparator.comparingLong(waits::get));
+		
+		return order;
+	}
+	
+	/**
+	 * The worker answered busy: skip it for retryAfterMillis.
+	 */
+	public static void markBusy(RMIWorker worker, long retryAfterMillis) {
+		load(worker).busyUntil = System.currentTimeMillis() + retryAfterMillis;
+		Metrics.increment("rmi_busy_total", "worker=\"" + worker + "\"");
+	}
+	
+	/**
+	 * Milliseconds until the first busy worker takes calls again, 0 when one is free.
+	 */
+	public static long timeUntilFree() {
+		long now = System.currentTimeMillis();
+		long soonest = Long.MAX_VALUE;
+		
+		for (RMIWorker worker : RMIWorkerRegistry.getWorkers()) {
+			soonest = Math.min(soonest, Math.max(0, load(worker).busyUntil - now));
+		}
+		return soonest;
+	}
+	
+	
+	private static long estimatedWait(RMIWorker worker, long now) {
+		Load load = load(worker);
+		
+		if (load.busyUntil > now) {
+			// after every worker that still takes calls
+			return Long.MAX_VALUE / 2 + (load.busyUntil - now);
+		}
+		
+		// no status (down, not asked yet, or an older worker without getStatus): only
+		// tried when the others fail
+		WorkerStatus status = load.status;
+		if (status == null) {
+			return Long.MAX_VALUE / 4;
+		}
+		return status.isSaturated() ? Long.MAX_VALUE / 4 : status.getEstimatedWaitMillis();
+	}
+	
+	private static void refresh(RMIWorker worker) {
+		Load load = load(worker);
+		
+		try {
+			load.status = RMIStubCache.invoke(worker, ImageProcessorInterface::getStatus);
+		} catch (Exception e) {
+			if (load.status != null) {
+				System.out.println("No status from RMI worker " + worker + ": " + e.getMessage());
+			}
+			load.status = null;
+		}
+	}
+	
+	private static Load load(RMIWorker worker) {
+		return loads.computeIfAbsent(worker, key -> new Load());
+	}
+}
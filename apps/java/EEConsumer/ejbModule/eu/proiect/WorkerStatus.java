@@ -0,0 +1,69 @@
+package eu.proiect;
+
+import java.io.Serializable;
+
+/**
+ * Load of one RMI worker, returned by ImageProcessorInterface.getStatus() (same class in
+ * the consumer), so callers can send tiles to the least busy worker.
+ */
+public class WorkerStatus implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    private final int parallelism;
+    private final int running;
+    private final int queued;
+    private final int queueCapacity;
+    private final long memoryBudget;
+    private final long memoryReserved;
+    private final long estimatedWaitMillis;
+    
+    public WorkerStatus(int parallelism, int running, int queued, int queueCapacity, long memoryBudget, long memoryReserved, 
+    		long estimatedWaitMillis) {
+        this.parallelism = parallelism;
+        this.running = running;
+        this.queued = queued;
+        this.queueCapacity = queueCapacity;
+        this.memoryBudget = memoryBudget;
+        this.memoryReserved = memoryReserved;
+        this.estimatedWaitMillis = estimatedWaitMillis;
+    }
+    
+    public int getParallelism() {
+        return parallelism;
+    }
+    
+    public int getRunning() {
+        return running;
+    }
+    
+    public int getQueued() {
+        return queued;
+    }
+    
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+    
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+    
+    public long getMemoryReserved() {
+        return memoryReserved;
+    }
+    
+    // time a new request would wait before it runs
+    public long getEstimatedWaitMillis() {
+        return estimatedWaitMillis;
+    }
+    
+    public boolean isSaturated() {
+        return queued >= queueCapacity;
+    }
+    
+    @Override
+    public String toString() {
+        return running + "/" + parallelism + " running, " + queued + "/" + queueCapacity + " queued, " 
+        		+ memoryReserved / (1024 * 1024) + "/" + memoryBudget / (1024 * 1024) + " MB, wait ~" + estimatedWaitMillis + " ms";
+    }
+}
@@ -1,76 +1,206 @@
 package eu.proiect;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
 
 public class db {
 	private static final String DB_URL = "jdbc:mysql://localhost:3306/blobstore?useSSL=false&allowPublicKeyRetrieval=true";
 	private static final String DB_USER = "stud";
 	private static final String DB_PASS = "stud123";
+	
+	// one connection per concurrent image plus a few spare
+	private static final String DB_POOL_SIZE = "8";
+	
+	private static HikariDataSource dataSource;
+		
+	
+	/**
+	 * Opens the pool and creates the table, once at startup.
+	 */
+	public static void init() throws SQLException {
+		checkConnection();
 		
+		try (Connection conn = db.getConnection()) {
+			createTableIfExists(conn);
+			
+			// tables created before the result cache
+			addColumnIfMissing(conn, "content_hash", "CHAR(64) NULL");
+			addColumnIfMissing(conn, "zoom", "DOUBLE NULL");
+			addIndexIfMissing(conn, "idx_images_hash_zoom", "(content_hash, zoom)");
+			
+			// blob metadata, and the paths used by the file storage backend
+			addColumnIfMissing(conn, "zoomed_hash", "CHAR(64) NULL");
+			addColumnIfMissing(conn, "original_size", "BIGINT NULL");
+			addColumnIfMissing(conn, "zoomed_size", "BIGINT NULL");
+			addColumnIfMissing(conn, "original_path", "VARCHAR(255) NULL");
+			addColumnIfMissing(conn, "zoomed_path", "VARCHAR(255) NULL");
+			// effective resampling filter (NULL in rows of the first versions), and the whole
+			// variant of the pipeline the result cache matches on (ResultCache.variant)
+			addColumnIfMissing(conn, "resample_filter", "VARCHAR(16) NULL");
+			addColumnIfMissing(conn, "variant", "VARCHAR(64) NULL");
+			
+			if (BlobStore.isEnabled()) {
+				allowNullZoomedBlob(conn);
+			}
+		}
+	}
 	
 	public static void checkConnection() throws SQLException {
 		String sql = " SELECT 1 + 1";
-		Connection conn = db.getConnection();
 		
-		PreparedStatement ps = conn.prepareStatement(sql);
-		
-		ps.execute();
+		try (Connection conn = db.getConnection();
+				PreparedStatement ps = conn.prepareStatement(sql)) {
+			ps.execute();
+		}
 	}
 	
 
-	public static long saveAsBlob(byte[] imageOriginal, byte[] imageZoomed, String typeImage)  {
-		Connection conn;
-		try {
-			conn = db.getConnection();
-
-		// create table if not exists! 
-		createTableIfExists(conn);
-		
+	/**
+	 * Queues the row on the write-behind stage, the future gives the inserted id. The
+	 * original blob goes only in the row with storeOriginal (the first level of an upload),
+	 * the others are read through content_hash.
+	 */
+	public static CompletableFuture<Long> saveAsBlob(byte[] imageOriginal, boolean storeOriginal, Path imageZoomed, 
+			String typeImage, String contentHash, String zoomedHash, double zoom, String filter) throws InterruptedException {
+		return DbWriter.submit(imageOriginal, storeOriginal, imageZoomed, typeImage, contentHash, zoomedHash, zoom, filter);
+	}
+	
+	/**
+	 * Id of an earlier result for the same upload bytes, zoom and variant, or null.
+	 */
+	public static Long findByHash(String contentHash, double zoom, String variant) throws SQLException {
+		String sql = "SELECT id FROM images WHERE content_hash = ? AND zoom = ? AND variant = ? ORDER BY id LIMIT 1";
 		
+		try (Connection conn = db.getConnection();
+				PreparedStatement ps = conn.prepareStatement(sql)) {
+			ps.setString(1, contentHash);
+			ps.setDouble(2, zoom);
+			ps.setString(3, variant);
+			
+			try (ResultSet rs = ps.executeQuery()) {
+				return rs.next() ? rs.getLong(1) : null;
+			}
+		}
+	}
+	
+	/**
+	 * Inserts the rows in one transaction and returns their ids in the same order.
+	 */
+	static long[] insertAll(List<DbWriter.PendingInsert> rows) throws SQLException, IOException {
 		// save image in table
-		String sql = "INSERT INTO images (image_original, image_zoomed, type_image) VALUES ( ?, ?, ?)";
-		
-		PreparedStatement ps = conn.prepareStatement(sql, PreparedStatement.RETURN_GENERATED_KEYS);
-		
-		ps.setBytes(1, imageOriginal);
-		ps.setBytes(2, imageZoomed);
-		ps.setString(3, typeImage);
-		
-		ps.executeUpdate();
-		System.out.println("RowInserted in mysql");
-
+		String sql = "INSERT INTO images (image_original, image_zoomed, type_image, content_hash, zoom, "
+				+ "zoomed_hash, original_size, zoomed_size, original_path, zoomed_path, resample_filter, variant) "
+				+ "VALUES ( ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+		long[] ids = new long[rows.size()];
+		boolean fileStore = BlobStore.isEnabled();
 		
-		try (ResultSet rs = ps.getGeneratedKeys()) {
-			if (rs.next()) {
-				long insertId = rs.getLong(1);
-				System.out.println("Inserted ID: " + insertId);
-				
-				conn.close();
+		try (Connection conn = db.getConnection()) {
+			conn.setAutoCommit(false);
+			
+			try (PreparedStatement ps = conn.prepareStatement(sql, PreparedStatement.RETURN_GENERATED_KEYS)) {
+				for (int i = 0; i < rows.size(); i++) {
+					DbWriter.PendingInsert row = rows.get(i);
+					long zoomedSize = Files.size(row.imageZoomed);
+					
+					ps.setString(3, row.typeImage);
+					ps.setString(4, row.contentHash);
+					ps.setDouble(5, row.zoom);
+					ps.setString(6, row.zoomedHash);
+					ps.setLong(7, row.imageOriginal.length);
+					ps.setLong(8, zoomedSize);
+					ps.setString(11, ResultCache.effectiveFilter(row.filter));
+					ps.setString(12, ResultCache.variant(row.filter));
+					
+					if (fileStore) {
+						// blobs go to the content-addressed directory, the row keeps the paths
+						ps.setNull(1, Types.LONGVARBINARY);
+						ps.setNull(2, Types.LONGVARBINARY);
+						ps.setString(9, BlobStore.put(row.contentHash, row.imageOriginal));
+						ps.setString(10, BlobStore.put(row.zoomedHash, row.imageZoomed));
 						
-				return insertId;
+						ps.executeUpdate();
+					} else {
+						// with server prepared statements both blobs are sent in chunks 
+						// (long data), nothing is copied into one big packet buffer
+						try (InputStream originalStream = new ByteArrayInputStream(row.imageOriginal);
+								InputStream zoomedStream = Files.newInputStream(row.imageZoomed)) {
+							if (row.storeOriginal) {
+								ps.setBinaryStream(1, originalStream, row.imageOriginal.length);
+							} else {
+								ps.setNull(1, Types.LONGVARBINARY);
+							}
+							ps.setBinaryStream(2, zoomedStream, zoomedSize);
+							ps.setNull(9, Types.VARCHAR);
+							ps.setNull(10, Types.VARCHAR);
+							
+							ps.executeUpdate();
+						}
+					}
+					
+					try (ResultSet rs = ps.getGeneratedKeys()) {
+						if (!rs.next()) {
+							throw new SQLException("No id generated for the inserted image");
+						}
+						ids[i] = rs.getLong(1);
+						System.out.println("Inserted ID: " + ids[i]);
+					}
+				}
+				
+				conn.commit();
+			} catch (SQLException | IOException e) {
+				conn.rollback();
+				throw e;
+			} finally {
+				conn.setAutoCommit(true);
 			}
 		}
 		
-		
-		} catch (SQLException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		
-		return -1;
+		return ids;
 	}
 	
 	
 	private static Connection getConnection() throws SQLException { 
-	    String url = System.getenv().getOrDefault("DB_URL", DB_URL);
-	    String user = System.getenv().getOrDefault("DB_USER", DB_USER);
-	    String pass = System.getenv().getOrDefault("DB_PASS", DB_PASS);
-	    
-		return DriverManager.getConnection(url, user, pass);
+		return getDataSource().getConnection();
+	}
+	
+	private static synchronized HikariDataSource getDataSource() {
+		if (dataSource == null) {
+		    HikariConfig config = new HikariConfig();
+		    config.setJdbcUrl(System.getenv().getOrDefault("DB_URL", DB_URL));
+		    config.setUsername(System.getenv().getOrDefault("DB_USER", DB_USER));
+		    config.setPassword(System.getenv().getOrDefault("DB_PASS", DB_PASS));
+		    config.setPoolName("consumer-db");
+		    config.setMaximumPoolSize(Integer.parseInt(System.getenv().getOrDefault("DB_POOL_SIZE", DB_POOL_SIZE)));
+		    config.setMinimumIdle(1);
+		    // connections are checked with isValid() when borrowed and pinged while idle
+		    config.setKeepaliveTime(60_000);
+		    config.setValidationTimeout(3_000);
+		    // the pool starts even when MySQL is down, getConnection() fails with an SQLException until it is up
+		    config.setInitializationFailTimeout(-1);
+		    
+		    // the INSERT is prepared once per connection on the server and reused
+		    config.addDataSourceProperty("useServerPrepStmts", "true");
+		    config.addDataSourceProperty("cachePrepStmts", "true");
+		    config.addDataSourceProperty("prepStmtCacheSize", "64");
+		    config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+		    
+		    dataSource = new HikariDataSource(config);
+		}
+		
+		return dataSource;
 	}
 	
 
@@ -80,15 +210,23 @@ public class db {
 			CREATE TABLE IF NOT EXISTS images (
 				id BIGINT AUTO_INCREMENT PRIMARY KEY,
 				image_original LONGBLOB,
-				image_zoomed LONGBLOB NOT NULL,
+				image_zoomed LONGBLOB NULL,
 				type_image VARCHAR(10),
-				created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+				content_hash CHAR(64) NULL,
+				zoom DOUBLE NULL,
+				zoomed_hash CHAR(64) NULL,
+				original_size BIGINT NULL,
+				zoomed_size BIGINT NULL,
+				original_path VARCHAR(255) NULL,
+				zoomed_path VARCHAR(255) NULL,
+				resample_filter VARCHAR(16) NULL,
+				variant VARCHAR(64) NULL,
+				created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+				INDEX idx_images_hash_zoom (content_hash, zoom)
 			);
 		""";
 
-		try {
-			PreparedStatement ps = conn.prepareStatement(sql);
-	
+		try (PreparedStatement ps = conn.prepareStatement(sql)) {
 			ps.execute();
 		} catch (SQLException e) {
 			// TODO Auto-generated catch block
@@ -98,4 +236,59 @@ public class db {
 		
 	}
 	
+	private static void addColumnIfMissing(Connection conn, String column, String definition) throws SQLException {
+		String sql = "SELECT 1 FROM information_schema.COLUMNS WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'images' AND COLUMN_NAME = ?";
+		
+		try (PreparedStatement ps = conn.prepareStatement(sql)) {
+			ps.setString(1, column);
+			
+			try (ResultSet rs = ps.executeQuery()) {
+				if (rs.next()) {
+					return;
+				}
+			}
+		}
+		
+		try (PreparedStatement ps = conn.prepareStatement("ALTER TABLE images ADD COLUMN " + column + " " + definition)) {
+			ps.execute();
+			System.out.println("Added column images." + column);
+		}
+	}
+	
+	private static void addIndexIfMissing(Connection conn, String index, String columns) throws SQLException {
+		String sql = "SELECT 1 FROM information_schema.STATISTICS WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'images' AND INDEX_NAME = ?";
+		
+		try (PreparedStatement ps = conn.prepareStatement(sql)) {
+			ps.setString(1, index);
+			
+			try (ResultSet rs = ps.executeQuery()) {
+				if (rs.next()) {
+					return;
+				}
+			}
+		}
+		
+		try (PreparedStatement ps = conn.prepareStatement("CREATE INDEX " + index + " ON images " + columns)) {
+			ps.execute();
+			System.out.println("Added index " + index);
+		}
+	}
+	
+	// the first schema had image_zoomed NOT NULL, rows of the file backend have no blob
+	private static void allowNullZoomedBlob(Connection conn) throws SQLException {
+		String sql = "SELECT IS_NULLABLE FROM information_schema.COLUMNS WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'images' AND COLUMN_NAME = 'image_zoomed'";
+		
+		try (PreparedStatement ps = conn.prepareStatement(sql);
+				ResultSet rs = ps.executeQuery()) {
+			if (!rs.next() || "YES".equals(rs.getString(1))) {
+				return;
+			}
+		}
+		
+		try (PreparedStatement ps = conn.prepareStatement("ALTER TABLE images MODIFY image_zoomed LONGBLOB NULL")) {
+			ps.execute();
+			System.out.println("images.image_zoomed is now nullable");
+		}
+	}
+	
 }
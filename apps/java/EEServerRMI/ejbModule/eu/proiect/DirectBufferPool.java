@@ -0,0 +1,76 @@
+package eu.proiect;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Direct buffers of the NIO tile transport (same class in the consumer and the worker),
+ * kept in power-of-two size classes so a tile of the same size reuses the buffer of the
+ * previous one instead of allocating native memory for every frame. At most
+ * NIO_BUFFER_POOL_BYTES are kept, the rest is left to the GC.
+ */
+public class DirectBufferPool {
+	static final String NIO_BUFFER_POOL_BYTES = String.valueOf(256L * 1024 * 1024);
+	
+	// 4 KB, the smallest class
+	private static final int MIN_SHIFT = 12;
+	
+	private static final long maxPooled = 
+			Long.parseLong(System.getenv().getOrDefault("NIO_BUFFER_POOL_BYTES", NIO_BUFFER_POOL_BYTES));
+	private static final AtomicLong pooled = new AtomicLong();
+	private static final List<ConcurrentLinkedQueue<ByteBuffer>> classes = new ArrayList<>();
+	
+	static {
+		for (int shift = 0; shift < 31; shift++) {
+			classes.add(new ConcurrentLinkedQueue<>());
+		}
+		Metrics.gauge("nio_buffer_pool_bytes", pooled::get);
+	}
+	
+	
+	/**
+	 * A little endian buffer with position 0 and limit size; give it back with release().
+	 */
+	public static ByteBuffer acquire(int size) {
+		int shift = shift(size);
+		ByteBuffer buffer = classes.get(shift).poll();
+		
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(1 << shift);
+			Metrics.increment("nio_buffer_allocations_total", "size=\"" + (1L << shift) + "\"");
+		} else {
+			pooled.addAndGet(-buffer.capacity());
+		}
+		
+		buffer.clear().limit(size);
+		return buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	/**
+	 * The native memory acquire(size) takes: size rounded up to its class.
+	 */
+	public static long capacity(int size) {
+		return 1L << shift(size);
+	}
+	
+	public static void release(ByteBuffer buffer) {
+		int capacity = buffer.capacity();
+		if (!buffer.isDirect() || Integer.bitCount(capacity) != 1 || capacity < (1 << MIN_SHIFT)) {
+			return;
+		}
+		if (pooled.addAndGet(capacity) > maxPooled) {
+			pooled.addAndGet(-capacity);
+			return;
+		}
+		classes.get(Integer.numberOfTrailingZeros(capacity)).offer(buffer);
+	}
+	
+	
+	private static int shift(int size) {
+		return Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, size - 1)));
+	}
+}
@@ -2,11 +2,18 @@ package eu.proiect;
 
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.rmi.server.UnicastRemoteObject;
 
 import javax.imageio.ImageIO;
@@ -16,6 +23,22 @@ import javax.imageio.ImageIO;
 public class ImageProcessor extends UnicastRemoteObject implements ImageProcessorInterface {
 	private static final long serialVersionUID = 1L;
 	
+	// "bilinear", "bicubic", "lanczos" (Resampler) or "graphics2d" (Graphics2D.drawImage),
+	// used when the request does not choose one
+	static final String RESAMPLE_FILTER = "bicubic";
+	static final String FILTER_GRAPHICS2D = "graphics2d";
+	
+	// shrinking: "halving" averages 2x2 blocks while the image is still 2x the target, then
+	// the filter does the rest; "area" averages the output pixel area in one pass;
+	// "filter" uses the chosen filter for the whole reduction
+	static final String DOWNSCALE_MODE = "halving";
+	
+	private static final AtomicInteger requestsInFlight = new AtomicInteger();
+	
+	static {
+		Metrics.gauge("rmi_requests_in_flight", requestsInFlight::get);
+	}
+	
 	protected ImageProcessor() throws RemoteException {
 		super();
 		// TODO Auto-generated constructor stub
@@ -23,6 +46,28 @@ public class ImageProcessor extends UnicastRemoteObject implements ImageProcesso
 
 	@Override
 	public ImageProcessingResult processIt(byte[] imageBytes, String typeImage, double zoomFactory, String uploadId) {
+		long start = System.nanoTime();
+		requestsInFlight.incrementAndGet();
+		
+		WorkerAdmission.Ticket ticket = admit(encodedMemory(imageBytes, zoomFactory));
+		if (ticket == null) {
+			requestsInFlight.decrementAndGet();
+			Metrics.increment("rmi_requests_total", "method=\"processIt\",outcome=\"busy\"");
+			return busy(uploadId);
+		}
+		
+		try {
+			ImageProcessingResult result = processEncoded(imageBytes, typeImage, zoomFactory, uploadId);
+			Metrics.increment("rmi_requests_total", "method=\"processIt\",outcome=\"" + (result.getErrorMessage() == null ? "ok" : "error") + "\"");
+			return result;
+		} finally {
+			WorkerAdmission.release(ticket);
+			requestsInFlight.decrementAndGet();
+			Metrics.observe("worker_request", start, uploadId);
+		}
+	}
+	
+	private ImageProcessingResult processEncoded(byte[] imageBytes, String typeImage, double zoomFactory, String uploadId) {
     		
         System.out.println("Start image processing on RMI SERVER");
         System.out.println("Upload ID: " + uploadId);
@@ -39,8 +84,12 @@ public class ImageProcessor extends UnicastRemoteObject implements ImageProcesso
                 throw new IOException("Zoom factor must be positive (received: " + zoomFactory + ")");
             }
 		    
+			Metrics.addBytes("worker_receive", imageBytes.length);
+			
+			long decodeStart = System.nanoTime();
 			ByteArrayInputStream bais = new ByteArrayInputStream(imageBytes);
 			BufferedImage imageSegment = ImageIO.read(bais);
+			Metrics.observe("worker_decode", decodeStart, null);
 	
 			if(imageSegment == null) {
 			        throw new IOException("Failed to read image segment");
@@ -62,17 +111,20 @@ public class ImageProcessor extends UnicastRemoteObject implements ImageProcesso
             }
             
       
-            BufferedImage zoomedSegment = zoomImageSegment(imageSegment, newWidth, newHeight);
+            BufferedImage zoomedSegment = zoomImageSegment(imageSegment, null, newWidth, newHeight, null, 0, null);
             
             
+            long encodeStart = System.nanoTime();
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             boolean written = ImageIO.write(zoomedSegment, typeImage, baos);
+            Metrics.observe("worker_encode", encodeStart, null);
             
             if(!written) {
                 throw new IOException("Failed to write image format: " + typeImage);
             }
             
             byte[] resultBytes = baos.toByteArray();
+            Metrics.addBytes("worker_send", resultBytes.length);
             System.out.println("Result segment bytes: " + resultBytes.length);
             System.out.println("=== RMI SERVER: Segment processing DONE ===\n");
             
@@ -85,7 +137,292 @@ public class ImageProcessor extends UnicastRemoteObject implements ImageProcesso
 	}
 	
 	
-	private BufferedImage zoomImageSegment(BufferedImage segment, int newWidth, int newHeight) {
+	@Override
+	public ImageProcessingResult processRaster(int width, int height, int[] pixels, double zoomFactory, String uploadId) {
+		return processRasterLevels(width, height, pixels, new double[] { zoomFactory }, null, null, uploadId)[0];
+	}
+	
+	
+	@Override
+	public ImageProcessingResult[] processRasterLevels(int width, int height, int[] pixels, double[] zoomFactories, TileRows rows, 
+			String filter, String uploadId) {
+		long start = System.nanoTime();
+		requestsInFlight.incrementAndGet();
+		
+		WorkerAdmission.Ticket ticket = admit(rasterMemory(width, height, zoomFactories));
+		if (ticket == null) {
+			requestsInFlight.decrementAndGet();
+			Metrics.increment("rmi_requests_total", "method=\"processRasterLevels\",outcome=\"busy\"");
+			ImageProcessingResult[] results = new ImageProcessingResult[zoomFactories.length];
+			Arrays.fill(results, busy(uploadId));
+			return results;
+		}
+		
+		try {
+			ImageProcessingResult[] results = processLevels(width, height, pixels, zoomFactories, rows, filter, uploadId);
+			boolean failed = Arrays.stream(results).anyMatch(result -> result.getErrorMessage() != null);
+			Metrics.increment("rmi_requests_total", "method=\"processRasterLevels\",outcome=\"" + (failed ? "error" : "ok") + "\"");
+			return results;
+		} finally {
+			WorkerAdmission.release(ticket);
+			requestsInFlight.decrementAndGet();
+			Metrics.observe("worker_request", start, uploadId);
+		}
+	}
+	
+	@Override
+	public WorkerStatus getStatus() {
+		return WorkerAdmission.status();
+	}
+	
+	
+	@Override
+	public long startBatch(TileBatch batch) {
+		WorkerStatus status = WorkerAdmission.status();
+		if (status.isSaturated()) {
+			System.out.println("Worker saturated, refusing a batch of " + batch.size() + " tiles of upload " + batch.getUploadId() + ": " + status);
+			Metrics.increment("rmi_requests_total", "method=\"startBatch\",outcome=\"busy\"");
+			return -Math.max(100, status.getEstimatedWaitMillis());
+		}
+		
+		System.out.println("Batch of " + batch.size() + " tiles for upload " + batch.getUploadId() 
+				+ ", zoom factors: " + Arrays.toString(batch.getZoomFactors()));
+		Metrics.increment("rmi_requests_total", "method=\"startBatch\",outcome=\"ok\"");
+		
+		return TileBatches.start(batch, slot -> processBatchTile(batch, slot));
+	}
+	
+	@Override
+	public TileResult[] takeBatchResults(long batchId, long maxWaitMillis) {
+		return takeBatchResults(batchId, maxWaitMillis, Long.MAX_VALUE);
+	}
+	
+	// the NIO transport takes only what fits in one frame
+	TileResult[] takeBatchResults(long batchId, long maxWaitMillis, long maxBytes) {
+		try {
+			return TileBatches.take(batchId, maxWaitMillis, maxBytes);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return new TileResult[0];
+		}
+	}
+	
+	// runs on the batch pool, waits for its turn with the direct calls instead of refusing
+	private ImageProcessingResult[] processBatchTile(TileBatch batch, int slot) {
+		long start = System.nanoTime();
+		String uploadId = batch.getUploadId();
+		double[] zoomFactories = batch.getZoomFactors();
+		
+		WorkerAdmission.Ticket ticket;
+		try {
+			if (batch.isRaster()) {
+				ticket = WorkerAdmission.acquireWaiting(rasterMemory(batch.getWidth(), batch.getHeight(slot), zoomFactories));
+			} else {
+				ticket = WorkerAdmission.acquireWaiting(encodedMemory(batch.getImage(slot), Arrays.stream(zoomFactories).max().orElse(1)));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			ImageProcessingResult[] results = new ImageProcessingResult[zoomFactories.length];
+			Arrays.fill(results, new ImageProcessingResult(uploadId, "Interrupted"));
+			return results;
+		}
+		
+		requestsInFlight.incrementAndGet();
+		try {
+			if (batch.isRaster()) {
+				return processLevels(batch.getWidth(), batch.getHeight(slot), batch.getPixels(slot), zoomFactories, batch.getRows(slot), 
+						batch.getFilter(), uploadId);
+			}
+			
+			ImageProcessingResult[] results = new ImageProcessingResult[zoomFactories.length];
+			for (int i = 0; i < zoomFactories.length; i++) {
+				results[i] = processEncoded(batch.getImage(slot), batch.getTypeImage(), zoomFactories[i], uploadId);
+			}
+			return results;
+		} finally {
+			WorkerAdmission.release(ticket);
+			requestsInFlight.decrementAndGet();
+			Metrics.observe("worker_batch_tile", start, null);
+		}
+	}
+	
+	
+	// the encoded tile, its decoded raster (~4/3 of a BMP) and the zoomed one
+	private static long encodedMemory(byte[] imageBytes, double zoomFactory) {
+		return imageBytes == null ? 0 : (long) (imageBytes.length * (2 + 1.5 * zoomFactory * zoomFactory));
+	}
+	
+	// the received raster is already on the heap; every level adds its output and about
+	// as much again for the resampler's intermediate and halved rasters
+	private static long rasterMemory(int width, int height, double[] zoomFactories) {
+		long memory = 0;
+		for (double zoom : zoomFactories) {
+			memory += (long) (8.0 * width * height * Math.max(zoom, zoom * zoom));
+		}
+		return memory;
+	}
+	
+	private static WorkerAdmission.Ticket admit(long memoryBytes) {
+		try {
+			return WorkerAdmission.acquire(memoryBytes);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+	
+	private static ImageProcessingResult busy(String uploadId) {
+		WorkerStatus status = WorkerAdmission.status();
+		System.out.println("Worker saturated, refusing upload " + uploadId + ": " + status);
+		
+		return ImageProcessingResult.busy(uploadId, "Worker busy: " + status, Math.max(100, status.getEstimatedWaitMillis()));
+	}
+	
+	
+	private ImageProcessingResult[] processLevels(int width, int height, int[] pixels, double[] zoomFactories, TileRows rows, 
+			String filter, String uploadId) {
+		
+		System.out.println("Start raster processing on RMI SERVER");
+		System.out.println("Upload ID: " + uploadId);
+		System.out.println("Received raster: " + width + "x" + height);
+		System.out.println("Zoom factors: " + Arrays.toString(zoomFactories));
+		
+		ImageProcessingResult[] results = new ImageProcessingResult[zoomFactories.length];
+		
+		try {
+			if(pixels == null || width <= 0 || height <= 0 || pixels.length < width * height) {
+				throw new IOException("Invalid raster received: " + width + "x" + height);
+			}
+			if(rows != null && rows.levels() != zoomFactories.length) {
+				throw new IOException("Tile rows for " + rows.levels() + " of " + zoomFactories.length + " zoom levels");
+			}
+			
+			Metrics.addBytes("worker_receive", 4L * width * height);
+			
+			// the raster is wrapped once and read for every level
+			BufferedImage segment = wrapRaster(width, height, pixels);
+			
+			for(int i = 0; i < zoomFactories.length; i++) {
+				results[i] = zoomRaster(segment, pixels, zoomFactories[i], rows, i, filter, uploadId);
+			}
+			
+			System.out.println("=== RMI SERVER: Raster processing DONE ===\n");
+			
+		} catch (IOException e) {
+			e.printStackTrace();
+			Arrays.fill(results, new ImageProcessingResult(uploadId, e.getMessage()));
+		}
+		
+		return results;
+	}
+	
+	
+	// a tile (rows != null) gets the output rows the consumer placed it at, not its own rounding
+	private ImageProcessingResult zoomRaster(BufferedImage segment, int[] pixels, double zoomFactory, TileRows rows, int level, 
+			String filter, String uploadId) {
+		try {
+			if(zoomFactory <= 0) {
+				throw new IOException("Zoom factor must be positive (received: " + zoomFactory + ")");
+			}
+			
+			int newWidth = (int) Math.round(segment.getWidth() * zoomFactory);
+			int newHeight = rows != null ? rows.getOutRows(level) : (int) Math.round(segment.getHeight() * zoomFactory);
+			
+			if(newWidth <= 0 || newHeight <= 0) {
+				throw new IOException("Invalid dimensions after zoom: " + newWidth + "x" + newHeight);
+			}
+			
+			if(rows != null && !(rows.getRowStep(level) > 0)) {
+				throw new IOException("Invalid row step " + rows.getRowStep(level));
+			}
+			
+			BufferedImage zoomedSegment = zoomImageSegment(segment, pixels, newWidth, newHeight, rows, level, filter);
+			
+			// the zoomed image is TYPE_INT_RGB, its data buffer is already the packed raster
+			int[] resultPixels = ((DataBufferInt) zoomedSegment.getRaster().getDataBuffer()).getData();
+			Metrics.addBytes("worker_send", 4L * resultPixels.length);
+			
+			return new ImageProcessingResult(uploadId, newWidth, newHeight, resultPixels);
+			
+		} catch (IOException e) {
+			e.printStackTrace();
+			return new ImageProcessingResult(uploadId, e.getMessage());
+		}
+	}
+	
+	
+	// shares the received array, no copy of the pixels
+	private static BufferedImage wrapRaster(int width, int height, int[] pixels) {
+		DirectColorModel colorModel = new DirectColorModel(24, 0xFF0000, 0x00FF00, 0x0000FF);
+		DataBufferInt buffer = new DataBufferInt(pixels, width * height);
+		WritableRaster raster = Raster.createPackedRaster(buffer, width, height, width, colorModel.getMasks(), null);
+		
+		return new BufferedImage(colorModel, raster, false, null);
+	}
+	
+	
+	/**
+	 * Resizes with the filter of the request (or RESAMPLE_FILTER). pixels is the packed
+	 * raster of the segment when the caller has it, otherwise it is read from the image.
+	 * A tile with rows is resampled on the grid of its whole image (TileRows), without it
+	 * the segment is the whole image.
+	 */
+	private BufferedImage zoomImageSegment(BufferedImage segment, int[] pixels, int newWidth, int newHeight, 
+			TileRows rows, int level, String filter) {
+		String name = filter != null ? filter : System.getenv().getOrDefault("RESAMPLE_FILTER", RESAMPLE_FILTER);
+		Resampler.Filter kernel = Resampler.Filter.of(name);
+		
+		if (kernel == null && !FILTER_GRAPHICS2D.equalsIgnoreCase(name)) {
+			System.out.println("Unknown filter " + name + ", using " + FILTER_GRAPHICS2D);
+		}
+		
+		int width = segment.getWidth();
+		int height = segment.getHeight();
+		double rowStep = rows != null ? rows.getRowStep(level) : (double) height / newHeight;
+		double rowOrigin = rows != null ? rows.getRowOrigin(level) : 0;
+		String downscale = System.getenv().getOrDefault("DOWNSCALE_MODE", DOWNSCALE_MODE);
+		boolean shrinking = newWidth < width && rowStep > 1 && !"filter".equalsIgnoreCase(downscale);
+		
+		long start = System.nanoTime();
+		try {
+			if (shrinking) {
+				int[] source = pixels != null ? pixels : Resampler.pack(segment);
+				
+				if ("area".equalsIgnoreCase(downscale)) {
+					kernel = Resampler.Filter.AREA;
+				} else {
+					while (width >= 2 * newWidth && rowStep >= 2 && height >= 2) {
+						source = Resampler.halve(source, width, height);
+						width = (width + 1) / 2;
+						height = (height + 1) / 2;
+						// the same rows, counted in halved rows (an odd last row is half a row)
+						rowStep /= 2;
+						rowOrigin /= 2;
+					}
+				}
+				
+				if (kernel == null) {
+					// the fallback path gets the halved image, drawImage only does the last step
+					segment = wrapRaster(width, height, source);
+				} else {
+					return wrapRaster(newWidth, newHeight, Resampler.resize(source, width, height, newWidth, newHeight, kernel, rowStep, rowOrigin));
+				}
+			}
+			
+			if (kernel == null) {
+				return rows != null ? drawWindow(segment, newWidth, newHeight, rowStep, rowOrigin) : drawZoomed(segment, newWidth, newHeight);
+			}
+			
+			int[] source = pixels != null ? pixels : Resampler.pack(segment);
+			
+			return wrapRaster(newWidth, newHeight, Resampler.resize(source, width, height, newWidth, newHeight, kernel, rowStep, rowOrigin));
+		} finally {
+			Metrics.observe("resize", start, null);
+			Metrics.increment("resize_total", "filter=\"" + (kernel != null ? kernel.name().toLowerCase() : FILTER_GRAPHICS2D) + "\"");
+		}
+	}
+	
+	private BufferedImage drawZoomed(BufferedImage segment, int newWidth, int newHeight) {
 		System.out.println("  -> Applying zoom transformation: " + 
                 segment.getWidth() + "x" + segment.getHeight() + 
                 " -> " + newWidth + "x" + newHeight);
@@ -107,5 +444,18 @@ public class ImageProcessor extends UnicastRemoteObject implements ImageProcesso
 	        
 	      
 	}
+	
+	// a tile: source row s lands on output row (s - rowOrigin) / rowStep
+	private BufferedImage drawWindow(BufferedImage segment, int newWidth, int newHeight, double rowStep, double rowOrigin) {
+		BufferedImage zoomedSegment = new BufferedImage(newWidth, newHeight, BufferedImage.TYPE_INT_RGB);
+		
+		Graphics2D g2d = zoomedSegment.createGraphics();
+		g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+		g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+		g2d.drawImage(segment, new AffineTransform((double) newWidth / segment.getWidth(), 0, 0, 1 / rowStep, 0, -rowOrigin / rowStep), null);
+		g2d.dispose();
+		
+		return zoomedSegment;
+	}
 
 }
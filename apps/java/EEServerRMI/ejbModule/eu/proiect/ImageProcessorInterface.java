@@ -6,4 +6,26 @@ import java.rmi.RemoteException;
 public interface ImageProcessorInterface extends Remote {
 	ImageProcessingResult processIt(byte[] imageBytes, String typeImage, double zoomFactory, String uploadId) 
         throws RemoteException;
+	
+	// width x height packed 0xRRGGBB pixels in, zoomed raster out (no image codec on either side)
+	ImageProcessingResult processRaster(int width, int height, int[] pixels, double zoomFactory, String uploadId) 
+        throws RemoteException;
+	
+	// the same raster zoomed at every factor, one result per factor in the same order;
+	// rows: the tile's output rows on the image grid (TileRows), null when the raster is the whole image;
+	// filter: "area", "bilinear", "bicubic", "lanczos", "graphics2d" or null for the worker default
+	ImageProcessingResult[] processRasterLevels(int width, int height, int[] pixels, double[] zoomFactories, TileRows rows, String filter, 
+			String uploadId) throws RemoteException;
+	
+	// queue depth and estimated wait; a saturated worker answers the calls above with a
+	// busy result (ImageProcessingResult.isBusy), the caller should try another worker
+	WorkerStatus getStatus() throws RemoteException;
+	
+	// the tiles of a batch are processed in parallel on the worker; returns the batch id,
+	// or a value <= 0 when the worker is busy (minus a retry hint in milliseconds)
+	long startBatch(TileBatch batch) throws RemoteException;
+	
+	// tiles finished since the last call, waiting up to maxWaitMillis for the first one;
+	// null when the worker does not know the batch (restarted, or expired)
+	TileResult[] takeBatchResults(long batchId, long maxWaitMillis) throws RemoteException;
 }
\ No newline at end of file
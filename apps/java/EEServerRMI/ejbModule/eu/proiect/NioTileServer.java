@@ -0,0 +1,483 @@
+package eu.proiect;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The NIO tile transport of the worker (TileProtocol frames), next to RMI.
+ *
+ * One selector thread accepts, reads frames into pooled direct buffers and writes the
+ * replies with gathering writes; the requests themselves run on NIO_HANDLER_THREADS, so a
+ * connection can have many requests in flight and their replies go back as they finish.
+ * The work goes through the same ImageProcessor methods as RMI, admission included: a
+ * handler thread waits at most WORKER_QUEUE_TIMEOUT_MS for a slot, batch tiles run on the
+ * TileBatches pool, a long poll is capped at MAX_POLL_MS.
+ *
+ * Frames being read, handled or waiting to be written back may hold at most
+ * NIO_FRAME_MEMORY_BYTES of direct buffers (a quarter of the heap by default); a request
+ * frame over that is skipped unread and answered busy, as is a request that fails for
+ * lack of memory. A request that fails, or whose reply would be over NIO_MAX_FRAME_BYTES,
+ * is answered with an error, the connection stays: frames are length delimited, the next
+ * one is fine.
+ */
+public class NioTileServer implements Runnable {
+	static final String NIO_HANDLER_THREADS = "32";
+	static final long MAX_POLL_MS = 5000;
+	static final String NIO_FRAME_MEMORY_BYTES = String.valueOf(Runtime.getRuntime().maxMemory() / 4);
+	static final long BUSY_RETRY_MS = 1000;
+	
+	private static final long frameMemoryBudget = 
+			Long.parseLong(System.getenv().getOrDefault("NIO_FRAME_MEMORY_BYTES", NIO_FRAME_MEMORY_BYTES));
+	
+	private final ImageProcessor processor;
+	private final int port;
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	
+	// connections with replies to write, picked up by the selector thread
+	private final Queue<Connection> toWrite = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger connections = new AtomicInteger();
+	private final AtomicLong frameMemory = new AtomicLong();
+	// where skipped frames are read to, selector thread only
+	private final ByteBuffer discard = ByteBuffer.allocateDirect(64 * 1024);
+	
+	private final ExecutorService handlers = Executors.newFixedThreadPool(
+			Integer.parseInt(System.getenv().getOrDefault("NIO_HANDLER_THREADS", NIO_HANDLER_THREADS)), new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+		
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "nio-tile-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	
+	private class Connection {
+		final SocketChannel channel;
+		final SelectionKey key;
+		final ByteBuffer length = ByteBuffer.allocateDirect(4).order(ByteOrder.LITTLE_ENDIAN);
+		final AtomicBoolean closed = new AtomicBoolean();
+		ByteBuffer body;
+		long bodyCapacity;
+		
+		// a frame refused for memory: its requestId and type, then the rest is skipped
+		final ByteBuffer refusedHead = ByteBuffer.allocate(5).order(ByteOrder.LITTLE_ENDIAN);
+		int refusedLength;
+		int skipping = -1;
+		
+		// replies, written by the selector thread only
+		final Queue<Reply> outbox = new ArrayDeque<>();
+		Reply writing;
+		
+		Connection(SocketChannel channel, SelectionKey key) {
+			this.channel = channel;
+			this.key = key;
+		}
+	}
+	
+	// a finished reply frame, its buffers count in frameMemory until they are written
+	private static class Reply {
+		final TileProtocol.FrameWriter frame;
+		final ByteBuffer[] buffers;
+		
+		Reply(TileProtocol.FrameWriter frame, ByteBuffer[] buffers) {
+			this.frame = frame;
+			this.buffers = buffers;
+		}
+	}
+	
+	
+	public NioTileServer(ImageProcessor processor, int port) throws IOException {
+		this.processor = processor;
+		this.port = port;
+		this.selector = Selector.open();
+		this.server = ServerSocketChannel.open();
+		
+		server.bind(new InetSocketAddress(port));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		
+		Metrics.gauge("nio_connections", connections::get);
+	}
+	
+	public void start() {
+		Thread thread = new Thread(this, "nio-selector");
+		thread.setDaemon(false);
+		thread.start();
+		System.out.println("NIO tile server started on port: " + port);
+	}
+	
+	
+	@Override
+	public void run() {
+		while (server.isOpen()) {
+			try {
+				selector.select();
+				
+				Connection pending;
+				while ((pending = toWrite.poll()) != null) {
+					if (pending.key.isValid()) {
+						pending.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					}
+				}
+				
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					
+					try {
+						if (key.isAcceptable()) {
+							accept();
+							continue;
+						}
+						if (key.isReadable()) {
+							read((Connection) key.attachment());
+						}
+						if (key.isValid() && key.isWritable()) {
+							write((Connection) key.attachment());
+						}
+					} catch (IOException e) {
+						close((Connection) key.attachment(), e.getMessage());
+					} catch (Throwable e) {
+						// only this connection is lost, the selector goes on
+						System.err.println("NIO connection failed: " + e);
+						close((Connection) key.attachment(), String.valueOf(e));
+					}
+				}
+			} catch (Throwable e) {
+				System.err.println("NIO selector failed: " + e);
+			}
+		}
+	}
+	
+	
+	private void accept() throws IOException {
+		SocketChannel channel = server.accept();
+		if (channel == null) {
+			return;
+		}
+		
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		key.attach(new Connection(channel, key));
+		
+		connections.incrementAndGet();
+		System.out.println("NIO connection from " + channel.getRemoteAddress());
+	}
+	
+	// as many whole frames as arrived, each handed to the pool
+	private void read(Connection connection) throws IOException {
+		while (true) {
+			if (connection.skipping >= 0) {
+				if (!skip(connection)) {
+					return;
+				}
+				continue;
+			}
+			
+			if (connection.body == null) {
+				if (connection.channel.read(connection.length) < 0) {
+					close(connection, "closed by the client");
+					return;
+				}
+				if (connection.length.hasRemaining()) {
+					return;
+				}
+				
+				int length = connection.length.flip().getInt();
+				connection.length.clear();
+				if (length < 5 || length > TileProtocol.maxFrameBytes) {
+					throw new IOException("Invalid frame length " + length);
+				}
+				
+				long capacity = DirectBufferPool.capacity(length);
+				// small frames (status, polls) always pass, they are what frees the memory
+				boolean refused = frameMemory.addAndGet(capacity) > frameMemoryBudget && capacity > DirectBufferPool.capacity(1);
+				if (!refused) {
+					try {
+						connection.body = DirectBufferPool.acquire(length);
+						connection.bodyCapacity = capacity;
+					} catch (OutOfMemoryError e) {
+						refused = true;
+					}
+				}
+				if (refused) {
+					frameMemory.addAndGet(-capacity);
+					connection.refusedLength = length;
+					connection.refusedHead.clear();
+					connection.skipping = length - 5;
+					continue;
+				}
+			}
+			
+			if (connection.channel.read(connection.body) < 0) {
+				close(connection, "closed by the client");
+				return;
+			}
+			if (connection.body.hasRemaining()) {
+				return;
+			}
+			
+			ByteBuffer body = connection.body.flip();
+			long capacity = connection.bodyCapacity;
+			connection.body = null;
+			Metrics.addBytes("nio_receive", 4L + body.remaining());
+			handlers.execute(() -> handle(connection, body, capacity));
+		}
+	}
+	
+	// reads the head of a refused frame and throws the rest away; true once it is all gone
+	private boolean skip(Connection connection) throws IOException {
+		if (connection.refusedHead.hasRemaining()) {
+			if (connection.channel.read(connection.refusedHead) < 0) {
+				close(connection, "closed by the client");
+				return false;
+			}
+			if (connection.refusedHead.hasRemaining()) {
+				return false;
+			}
+		}
+		
+		while (connection.skipping > 0) {
+			discard.clear().limit(Math.min(discard.capacity(), connection.skipping));
+			int read = connection.channel.read(discard);
+			if (read < 0) {
+				close(connection, "closed by the client");
+				return false;
+			}
+			if (read == 0) {
+				return false;
+			}
+			connection.skipping -= read;
+		}
+		connection.skipping = -1;
+		
+		int requestId = connection.refusedHead.flip().getInt();
+		Metrics.increment("nio_requests_total", "type=\"refused\"");
+		Metrics.addBytes("nio_receive", 4L + connection.refusedLength);
+		System.out.println("NIO frame of " + connection.refusedLength + " bytes refused, no memory for it");
+		reply(connection, requestId, TileProtocol.results(requestId, new ImageProcessingResult[] { 
+				ImageProcessingResult.busy(null, "Worker has no memory for a frame of " + connection.refusedLength + " bytes", BUSY_RETRY_MS) }));
+		return true;
+	}
+	
+	private void write(Connection connection) throws IOException {
+		while (true) {
+			if (connection.writing == null) {
+				synchronized (connection.outbox) {
+					connection.writing = connection.outbox.poll();
+				}
+				if (connection.writing == null) {
+					connection.key.interestOps(SelectionKey.OP_READ);
+					return;
+				}
+			}
+			
+			connection.channel.write(connection.writing.buffers);
+			for (ByteBuffer buffer : connection.writing.buffers) {
+				if (buffer.hasRemaining()) {
+					// socket buffer full, OP_WRITE brings us back
+					return;
+				}
+			}
+			
+			Metrics.addBytes("nio_send", connection.writing.frame.getLength());
+			release(connection.writing);
+			connection.writing = null;
+		}
+	}
+	
+	private void handle(Connection connection, ByteBuffer body, long capacity) {
+		TileProtocol.FrameReader frame = new TileProtocol.FrameReader(body);
+		int requestId = frame.getInt();
+		byte type = frame.getByte();
+		TileProtocol.FrameWriter reply;
+		
+		try {
+			switch (type) {
+				case TileProtocol.RASTER_LEVELS: {
+					int width = frame.getInt();
+					int height = frame.getInt();
+					double[] zooms = frame.getDoubles();
+					TileRows rows = TileProtocol.readRows(frame, zooms.length);
+					String filter = frame.getString();
+					String uploadId = frame.getString();
+					if (width <= 0 || height <= 0) {
+						throw new IOException("Invalid raster " + width + "x" + height);
+					}
+					int[] pixels = frame.getInts(width * height);
+					frame.release();
+					
+					Metrics.increment("nio_requests_total", "type=\"raster\"");
+					reply = results(requestId, processor.processRasterLevels(width, height, pixels, zooms, rows, filter, uploadId));
+					break;
+				}
+				case TileProtocol.ENCODED: {
+					double[] zooms = frame.getDoubles();
+					String typeImage = frame.getString();
+					String uploadId = frame.getString();
+					byte[] image = frame.getBytes();
+					frame.release();
+					
+					Metrics.increment("nio_requests_total", "type=\"encoded\"");
+					ImageProcessingResult[] results = new ImageProcessingResult[zooms.length];
+					for (int i = 0; i < zooms.length; i++) {
+						results[i] = processor.processIt(image, typeImage, zooms[i], uploadId);
+					}
+					reply = results(requestId, results);
+					break;
+				}
+				case TileProtocol.START_BATCH: {
+					TileBatch batch = TileProtocol.readBatch(frame);
+					frame.release();
+					
+					Metrics.increment("nio_requests_total", "type=\"batch\"");
+					reply = TileProtocol.batchStarted(requestId, processor.startBatch(batch));
+					break;
+				}
+				case TileProtocol.TAKE_RESULTS: {
+					long batchId = frame.getLong();
+					long maxWait = Math.min(frame.getLong(), MAX_POLL_MS);
+					frame.release();
+					
+					// as many tiles as fit in one frame, the others are taken by the next poll
+					TileResult[] tiles = processor.takeBatchResults(batchId, maxWait, 
+							TileProtocol.maxFrameBytes - TileProtocol.HEAD_BYTES - 4);
+					if (tiles != null) {
+						for (int i = 0; i < tiles.length; i++) {
+							ImageProcessingResult[] levels = tiles[i].getLevels();
+							long length = TileProtocol.HEAD_BYTES + 4 + 4 + TileProtocol.levelsLength(levels);
+							if (length > TileProtocol.maxFrameBytes) {
+								tiles[i] = new TileResult(tiles[i].getTileIndex(), oversized(levels.length, length));
+							}
+						}
+					}
+					reply = TileProtocol.batchResults(requestId, tiles);
+					break;
+				}
+				case TileProtocol.STATUS:
+					frame.release();
+					reply = TileProtocol.status(requestId, processor.getStatus());
+					break;
+				default:
+					throw new IOException("Unknown request type " + type);
+			}
+		} catch (Exception e) {
+			System.err.println("NIO request failed: " + e);
+			reply = TileProtocol.results(requestId, new ImageProcessingResult[] { 
+					new ImageProcessingResult(null, "Request failed on the worker: " + e.getMessage()) });
+		} catch (OutOfMemoryError e) {
+			System.err.println("NIO request failed: " + e);
+			reply = TileProtocol.results(requestId, new ImageProcessingResult[] { 
+					ImageProcessingResult.busy(null, "Worker out of memory", BUSY_RETRY_MS) });
+		} finally {
+			frame.release();
+			frameMemory.addAndGet(-capacity);
+		}
+		
+		reply(connection, requestId, reply);
+	}
+	
+	// the levels, or an error for each of them when the reply would be over NIO_MAX_FRAME_BYTES
+	private static TileProtocol.FrameWriter results(int requestId, ImageProcessingResult[] results) {
+		long length = TileProtocol.HEAD_BYTES + TileProtocol.levelsLength(results);
+		if (length > TileProtocol.maxFrameBytes) {
+			return TileProtocol.results(requestId, oversized(results.length, length));
+		}
+		return TileProtocol.results(requestId, results);
+	}
+	
+	private static ImageProcessingResult[] oversized(int levels, long length) {
+		System.out.println("NIO reply of " + length + " bytes is over NIO_MAX_FRAME_BYTES, answered with an error");
+		Metrics.increment("nio_requests_total", "type=\"oversized\"");
+		
+		ImageProcessingResult[] errors = new ImageProcessingResult[levels];
+		for (int i = 0; i < levels; i++) {
+			errors[i] = new ImageProcessingResult(null, "Reply of " + length + " bytes is over NIO_MAX_FRAME_BYTES, send smaller tiles");
+		}
+		return errors;
+	}
+	
+	// the frame is finished here, on the thread that built it, and counted in frameMemory
+	private void reply(Connection connection, int requestId, TileProtocol.FrameWriter frame) {
+		ByteBuffer[] buffers;
+		try {
+			buffers = frame.finish();
+		} catch (IOException e) {
+			// sizes are checked before a reply is built, a frame that still does not fit only fails its request
+			System.err.println("NIO reply failed: " + e.getMessage());
+			reply(connection, requestId, TileProtocol.results(requestId, new ImageProcessingResult[] { 
+					new ImageProcessingResult(null, "Reply failed on the worker: " + e.getMessage()) }));
+			return;
+		}
+		
+		Reply reply = new Reply(frame, buffers);
+		frameMemory.addAndGet(frame.getLength());
+		
+		synchronized (connection.outbox) {
+			if (connection.closed.get()) {
+				release(reply);
+				return;
+			}
+			connection.outbox.add(reply);
+		}
+		toWrite.add(connection);
+		selector.wakeup();
+	}
+	
+	private void release(Reply reply) {
+		reply.frame.release();
+		frameMemory.addAndGet(-reply.frame.getLength());
+	}
+	
+	private void close(Connection connection, String reason) {
+		if (connection == null || !connection.closed.compareAndSet(false, true)) {
+			return;
+		}
+		
+		System.out.println("NIO connection closed: " + reason);
+		connections.decrementAndGet();
+		// a frame half read, close() runs on the selector thread like read()
+		if (connection.body != null) {
+			DirectBufferPool.release(connection.body);
+			frameMemory.addAndGet(-connection.bodyCapacity);
+			connection.body = null;
+		}
+		// replies nobody will read
+		synchronized (connection.outbox) {
+			if (connection.writing != null) {
+				release(connection.writing);
+				connection.writing = null;
+			}
+			connection.outbox.forEach(this::release);
+			connection.outbox.clear();
+		}
+		connection.key.cancel();
+		try {
+			connection.channel.close();
+		} catch (IOException e) {
+			// already gone
+		}
+	}
+}
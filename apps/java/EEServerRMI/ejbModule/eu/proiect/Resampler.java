@@ -0,0 +1,423 @@
+package eu.proiect;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Separable resampling of packed 0xRRGGBB rasters.
+ *
+ * The image is resized in two 1-D passes (rows, then columns, or the other way round when
+ * that keeps the intermediate raster smaller). The weights of every output column and row
+ * are computed once per pass, and the rows of each pass are split across a ForkJoin pool,
+ * so one tile uses every core of the worker. When shrinking, the kernel is widened by the
+ * scale so every source pixel contributes (no aliasing).
+ */
+public class Resampler {
+	static final String RESAMPLE_THREADS = String.valueOf(Runtime.getRuntime().availableProcessors());
+	// rows handled by one task before it is not split any more
+	static final int ROWS_PER_TASK = 16;
+
+	private static final ForkJoinPool pool = new ForkJoinPool(
+			Integer.parseInt(System.getenv().getOrDefault("RESAMPLE_THREADS", RESAMPLE_THREADS)));
+
+
+	public enum Filter {
+		// box over the area of the output pixel (area averaging), for shrinking
+		AREA(0.5) {
+			@Override
+			double weight(double x) {
+				return Math.abs(x) <= 0.5 ? 1 : 0;
+			}
+		},
+		BILINEAR(1) {
+			@Override
+			double weight(double x) {
+				x = Math.abs(x);
+				return x < 1 ? 1 - x : 0;
+			}
+		},
+		// Catmull-Rom (a = -0.5), what the BICUBIC rendering hint uses
+		BICUBIC(2) {
+			@Override
+			double weight(double x) {
+				x = Math.abs(x);
+				if (x < 1) {
+					return (1.5 * x - 2.5) * x * x + 1;
+				}
+				if (x < 2) {
+					return ((-0.5 * x + 2.5) * x - 4) * x + 2;
+				}
+				return 0;
+			}
+		},
+		LANCZOS(3) {
+			@Override
+			double weight(double x) {
+				x = Math.abs(x);
+				if (x == 0) {
+					return 1;
+				}
+				if (x >= 3) {
+					return 0;
+				}
+				double px = Math.PI * x;
+				return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+			}
+		};
+
+		final double support;
+
+		Filter(double support) {
+			this.support = support;
+		}
+
+		abstract double weight(double x);
+
+		/**
+		 * "area", "bilinear", "bicubic" or "lanczos"; null for any other name.
+		 */
+		public static Filter of(String name) {
+			for (Filter filter : values()) {
+				if (filter.name().equalsIgnoreCase(name)) {
+					return filter;
+				}
+			}
+			return null;
+		}
+	}
+
+
+	/**
+	 * Contributions of the source pixels to every output pixel of one axis: output i reads
+	 * count[i] pixels from start[i], with the weights at i * maxCount.
+	 */
+	static class Weights {
+		final int[] start;
+		final int[] count;
+		final float[] weights;
+		final int maxCount;
+
+		Weights(int srcSize, int dstSize, Filter filter) {
+			this(srcSize, dstSize, filter, (double) srcSize / dstSize, 0);
+		}
+
+		// output i is centred on source position origin + (i + 0.5) * step
+		Weights(int srcSize, int dstSize, Filter filter, double step, double origin) {
+			// shrinking: the kernel covers step source pixels
+			double filterScale = Math.max(1, step);
+			double support = filter.support * filterScale;
+
+			this.maxCount = (int) Math.ceil(support) * 2 + 1;
+			this.start = new int[dstSize];
+			this.count = new int[dstSize];
+			this.weights = new float[dstSize * maxCount];
+
+			for (int i = 0; i < dstSize; i++) {
+				double center = origin + (i + 0.5) * step;
+				int from = Math.max(0, (int) Math.floor(center - support));
+				int to = Math.min(srcSize, (int) Math.ceil(center + support));
+
+				double total = 0;
+				int n = 0;
+				for (int j = from; j < to && n < maxCount; j++, n++) {
+					double w = filter.weight((j + 0.5 - center) / filterScale);
+					weights[i * maxCount + n] = (float) w;
+					total += w;
+				}
+
+				if (n == 0) {
+					// centre past the raster (a window at its edge): the nearest row
+					from = Math.min(srcSize - 1, Math.max(0, (int) Math.floor(center)));
+					weights[i * maxCount] = 1;
+					n = 1;
+				}
+
+				// normalized, the borders keep their brightness
+				if (total != 0) {
+					float inverse = (float) (1 / total);
+					for (int k = 0; k < n; k++) {
+						weights[i * maxCount + k] *= inverse;
+					}
+				}
+				start[i] = from;
+				count[i] = n;
+			}
+		}
+	}
+
+
+	/**
+	 * Resizes a srcWidth x srcHeight packed RGB raster to dstWidth x dstHeight.
+	 */
+	public static int[] resize(int[] src, int srcWidth, int srcHeight, int dstWidth, int dstHeight, Filter filter) {
+		return resize(src, srcWidth, srcHeight, dstWidth, dstHeight, filter, (double) srcHeight / dstHeight, 0);
+	}
+
+	/**
+	 * Resizes with output row i centred on source row rowOrigin + (i + 0.5) * rowStep: the
+	 * rows of a tile on the grid of the whole image (TileRows), the rows around them read
+	 * as context.
+	 */
+	public static int[] resize(int[] src, int srcWidth, int srcHeight, int dstWidth, int dstHeight, Filter filter, 
+			double rowStep, double rowOrigin) {
+		Weights columns = new Weights(srcWidth, dstWidth, filter);
+		Weights rows = new Weights(srcHeight, dstHeight, filter, rowStep, rowOrigin);
+
+		// the pass that shrinks most goes first, the intermediate raster is the smaller one
+		if ((long) dstWidth * srcHeight <= (long) srcWidth * dstHeight) {
+			int[] tmp = new int[dstWidth * srcHeight];
+			run(new HorizontalPass(src, srcWidth, tmp, dstWidth, columns, 0, srcHeight));
+
+			int[] dst = new int[dstWidth * dstHeight];
+			run(new VerticalPass(tmp, dst, dstWidth, rows, 0, dstHeight));
+			return dst;
+		}
+
+		int[] tmp = new int[srcWidth * dstHeight];
+		run(new VerticalPass(src, tmp, srcWidth, rows, 0, dstHeight));
+
+		int[] dst = new int[dstWidth * dstHeight];
+		run(new HorizontalPass(tmp, srcWidth, dst, dstWidth, columns, 0, dstHeight));
+		return dst;
+	}
+
+
+	/**
+	 * The pixels of an image as packed RGB. INT_RGB rasters are used as they are, 3-byte
+	 * BGR rasters are packed directly, other types go through getRGB.
+	 */
+	public static int[] pack(BufferedImage image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+
+		switch (image.getType()) {
+			case BufferedImage.TYPE_INT_RGB:
+				if (image.getRaster().getDataBuffer() instanceof DataBufferInt buffer
+						&& buffer.getData().length == width * height && image.getRaster().getParent() == null) {
+					return buffer.getData();
+				}
+				break;
+			case BufferedImage.TYPE_3BYTE_BGR:
+				if (image.getRaster().getDataBuffer() instanceof DataBufferByte buffer
+						&& buffer.getData().length == 3 * width * height && image.getRaster().getParent() == null) {
+					byte[] bgr = buffer.getData();
+					int[] packed = new int[width * height];
+					for (int i = 0, j = 0; i < packed.length; i++, j += 3) {
+						packed[i] = ((bgr[j + 2] & 0xFF) << 16) | ((bgr[j + 1] & 0xFF) << 8) | (bgr[j] & 0xFF);
+					}
+					return packed;
+				}
+				break;
+			default:
+				break;
+		}
+
+		int[] packed = image.getRGB(0, 0, width, height, null, 0, width);
+		for (int i = 0; i < packed.length; i++) {
+			packed[i] &= 0xFFFFFF;
+		}
+		return packed;
+	}
+
+
+	/**
+	 * Halves a raster by averaging 2x2 blocks; an odd last row / column is kept, averaged
+	 * over 1x2 (the output is rounded up). Cheap integer prefilter for big reductions: the
+	 * kernel pass after it only covers the last factor of at most 2 instead of the whole
+	 * reduction.
+	 */
+	public static int[] halve(int[] src, int srcWidth, int srcHeight) {
+		int dstWidth = (srcWidth + 1) / 2;
+		int dstHeight = (srcHeight + 1) / 2;
+		int[] dst = new int[dstWidth * dstHeight];
+
+		run(new HalvingPass(src, srcWidth, srcHeight, dst, dstWidth, 0, dstHeight));
+		return dst;
+	}
+
+
+	private static void run(RecursiveAction pass) {
+		pool.invoke(pass);
+	}
+
+	private static int clamp(float value) {
+		int v = Math.round(value);
+		return v < 0 ? 0 : (v > 255 ? 255 : v);
+	}
+
+
+	// rows [from, to): every output pixel is a weighted sum along its source row
+	private static class HorizontalPass extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final int[] src;
+		final int srcWidth;
+		final int[] dst;
+		final int dstWidth;
+		// the tasks are never serialized
+		final transient Weights weights;
+		final int from;
+		final int to;
+
+		HorizontalPass(int[] src, int srcWidth, int[] dst, int dstWidth, Weights weights, int from, int to) {
+			this.src = src;
+			this.srcWidth = srcWidth;
+			this.dst = dst;
+			this.dstWidth = dstWidth;
+			this.weights = weights;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > ROWS_PER_TASK) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new HorizontalPass(src, srcWidth, dst, dstWidth, weights, from, middle),
+						new HorizontalPass(src, srcWidth, dst, dstWidth, weights, middle, to));
+				return;
+			}
+
+			for (int y = from; y < to; y++) {
+				int srcRow = y * srcWidth;
+				int dstRow = y * dstWidth;
+
+				for (int x = 0; x < dstWidth; x++) {
+					float r = 0, g = 0, b = 0;
+					int offset = x * weights.maxCount;
+					int first = srcRow + weights.start[x];
+
+					for (int k = 0; k < weights.count[x]; k++) {
+						int pixel = src[first + k];
+						float w = weights.weights[offset + k];
+						r += ((pixel >> 16) & 0xFF) * w;
+						g += ((pixel >> 8) & 0xFF) * w;
+						b += (pixel & 0xFF) * w;
+					}
+
+					dst[dstRow + x] = (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+				}
+			}
+		}
+	}
+
+	// output rows [from, to): rounded mean of each 2x2 block, per channel
+	private static class HalvingPass extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final int[] src;
+		final int srcWidth;
+		final int srcHeight;
+		final int[] dst;
+		final int dstWidth;
+		final int from;
+		final int to;
+
+		HalvingPass(int[] src, int srcWidth, int srcHeight, int[] dst, int dstWidth, int from, int to) {
+			this.src = src;
+			this.srcWidth = srcWidth;
+			this.srcHeight = srcHeight;
+			this.dst = dst;
+			this.dstWidth = dstWidth;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > ROWS_PER_TASK) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new HalvingPass(src, srcWidth, srcHeight, dst, dstWidth, from, middle),
+						new HalvingPass(src, srcWidth, srcHeight, dst, dstWidth, middle, to));
+				return;
+			}
+
+			for (int y = from; y < to; y++) {
+				int top = 2 * y * srcWidth;
+				// an odd last row / column is counted twice: the mean of 1x2
+				int bottom = 2 * y + 1 < srcHeight ? top + srcWidth : top;
+				int dstRow = y * dstWidth;
+
+				for (int x = 0; x < dstWidth; x++) {
+					int left = 2 * x;
+					int right = Math.min(left + 1, srcWidth - 1);
+					int a = src[top + left];
+					int b = src[top + right];
+					int c = src[bottom + left];
+					int d = src[bottom + right];
+
+					// red and blue summed together in one int, green apart (no carry between them)
+					int redBlue = (a & 0xFF00FF) + (b & 0xFF00FF) + (c & 0xFF00FF) + (d & 0xFF00FF) + 0x020002;
+					int green = (a & 0x00FF00) + (b & 0x00FF00) + (c & 0x00FF00) + (d & 0x00FF00) + 0x000200;
+
+					dst[dstRow + x] = ((redBlue >> 2) & 0xFF00FF) | ((green >> 2) & 0x00FF00);
+				}
+			}
+		}
+	}
+
+	// output rows [from, to): every output pixel is a weighted sum along its source column
+	private static class VerticalPass extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final int[] src;
+		final int[] dst;
+		final int width;
+		// the tasks are never serialized
+		final transient Weights weights;
+		final int from;
+		final int to;
+
+		VerticalPass(int[] src, int[] dst, int width, Weights weights, int from, int to) {
+			this.src = src;
+			this.dst = dst;
+			this.width = width;
+			this.weights = weights;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > ROWS_PER_TASK) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new VerticalPass(src, dst, width, weights, from, middle),
+						new VerticalPass(src, dst, width, weights, middle, to));
+				return;
+			}
+
+			int n = weights.maxCount;
+			float[] r = new float[width];
+			float[] g = new float[width];
+			float[] b = new float[width];
+
+			for (int y = from; y < to; y++) {
+				Arrays.fill(r, 0);
+				Arrays.fill(g, 0);
+				Arrays.fill(b, 0);
+
+				// source rows are read whole, in memory order
+				for (int k = 0; k < weights.count[y]; k++) {
+					int srcRow = (weights.start[y] + k) * width;
+					float w = weights.weights[y * n + k];
+
+					for (int x = 0; x < width; x++) {
+						int pixel = src[srcRow + x];
+						r[x] += ((pixel >> 16) & 0xFF) * w;
+						g[x] += ((pixel >> 8) & 0xFF) * w;
+						b[x] += (pixel & 0xFF) * w;
+					}
+				}
+
+				int dstRow = y * width;
+				for (int x = 0; x < width; x++) {
+					dst[dstRow + x] = (clamp(r[x]) << 16) | (clamp(g[x]) << 8) | clamp(b[x]);
+				}
+			}
+		}
+	}
+}
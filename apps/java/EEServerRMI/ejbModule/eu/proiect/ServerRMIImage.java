@@ -5,6 +5,9 @@ import java.rmi.registry.Registry;
 
 public class ServerRMIImage {
 	static final String RMI_SERVER_PORT = "1099";
+	// NIO tile transport, on NIO_SERVER_PORT or the RMI port + NIO_PORT_OFFSET
+	static final String NIO_ENABLED = "true";
+	static final String NIO_PORT_OFFSET = "1000";
 	
 	public static void main(String[] args) {
 	
@@ -20,6 +23,15 @@ public class ServerRMIImage {
 			
 			System.out.println("SERVER RMI 1 - Zoom Image Started on port: "  + serverPort);
 			
+			if (Boolean.parseBoolean(System.getenv().getOrDefault("NIO_ENABLED", NIO_ENABLED))) {
+				int offset = Integer.parseInt(System.getenv().getOrDefault("NIO_PORT_OFFSET", NIO_PORT_OFFSET));
+				String nioPort = System.getenv().getOrDefault("NIO_SERVER_PORT", String.valueOf(Integer.parseInt(serverPort) + offset));
+				
+				new NioTileServer(ip, Integer.parseInt(nioPort)).start();
+			}
+			
+			Metrics.serve();
+			
 			
 		} catch (Exception e) {
 			e.printStackTrace();
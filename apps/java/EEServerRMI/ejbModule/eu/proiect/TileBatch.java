@@ -0,0 +1,122 @@
+package eu.proiect;
+
+import java.io.Serializable;
+
+/**
+ * Several tiles of one image sent to a worker in a single call (same class in the
+ * consumer and the worker). The zoom levels, filter and upload are shared; every tile
+ * is either a packed raster (typeImage null) with its TileRows, or an encoded image of
+ * typeImage.
+ */
+public class TileBatch implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    private final String uploadId;
+    private final String typeImage;
+    private final int width;
+    private final double[] zoomFactors;
+    private final String filter;
+    
+    private final int[] tileIndexes;
+    private final int[] heights;
+    private final int[][] pixels;
+    private final TileRows[] rows;
+    private final byte[][] images;
+    
+    // raster tiles of the same width
+    public TileBatch(String uploadId, int width, double[] zoomFactors, String filter, int size) {
+        this.uploadId = uploadId;
+        this.typeImage = null;
+        this.width = width;
+        this.zoomFactors = zoomFactors;
+        this.filter = filter;
+        this.tileIndexes = new int[size];
+        this.heights = new int[size];
+        this.pixels = new int[size][];
+        this.rows = new TileRows[size];
+        this.images = null;
+    }
+    
+    // encoded tiles
+    public TileBatch(String uploadId, String typeImage, double[] zoomFactors, int size) {
+        this.uploadId = uploadId;
+        this.typeImage = typeImage;
+        this.width = 0;
+        this.zoomFactors = zoomFactors;
+        this.filter = null;
+        this.tileIndexes = new int[size];
+        this.heights = null;
+        this.pixels = null;
+        this.rows = null;
+        this.images = new byte[size][];
+    }
+    
+    public void setRaster(int slot, int tileIndex, int height, int[] tilePixels, TileRows tileRows) {
+        tileIndexes[slot] = tileIndex;
+        heights[slot] = height;
+        pixels[slot] = tilePixels;
+        rows[slot] = tileRows;
+    }
+    
+    public void setImage(int slot, int tileIndex, byte[] image) {
+        tileIndexes[slot] = tileIndex;
+        images[slot] = image;
+    }
+    
+    // the worker drops a tile once it is processed
+    public void clear(int slot) {
+        if (pixels != null) {
+            pixels[slot] = null;
+        } else {
+            images[slot] = null;
+        }
+    }
+    
+    public int size() {
+        return tileIndexes.length;
+    }
+    
+    public boolean isRaster() {
+        return typeImage == null;
+    }
+    
+    public String getUploadId() {
+        return uploadId;
+    }
+    
+    public String getTypeImage() {
+        return typeImage;
+    }
+    
+    public int getWidth() {
+        return width;
+    }
+    
+    public double[] getZoomFactors() {
+        return zoomFactors;
+    }
+    
+    public String getFilter() {
+        return filter;
+    }
+    
+    public int getTileIndex(int slot) {
+        return tileIndexes[slot];
+    }
+    
+    public int getHeight(int slot) {
+        return heights[slot];
+    }
+    
+    public int[] getPixels(int slot) {
+        return pixels[slot];
+    }
+    
+    public TileRows getRows(int slot) {
+        return rows[slot];
+    }
+    
+    public byte[] getImage(int slot) {
+        return images[slot];
+    }
+}
@@ -0,0 +1,142 @@
+package eu.proiect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+/**
+ * Tile batches in progress on this worker. The tiles of a batch run in parallel on a pool
+ * of WorkerAdmission.getParallelism() threads; finished tiles wait in the batch until the
+ * caller takes them, so it can stitch a tile while the others are still being zoomed.
+ * A batch nobody asked about for BATCH_TTL_MS (the consumer died) is dropped.
+ */
+public class TileBatches {
+	static final String BATCH_TTL_MS = "60000";
+	
+	private static final long batchTtlMs = Long.parseLong(System.getenv().getOrDefault("BATCH_TTL_MS", BATCH_TTL_MS));
+	
+	private static final Map<Long, Batch> batches = new ConcurrentHashMap<>();
+	private static final AtomicLong nextId = new AtomicLong();
+	// submitted, not started yet
+	private static final AtomicInteger pendingTiles = new AtomicInteger();
+	
+	private static final ExecutorService pool = Executors.newFixedThreadPool(WorkerAdmission.getParallelism(), runnable -> {
+		Thread thread = new Thread(runnable, "batch-tile");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	static {
+		Metrics.gauge("worker_batches", batches::size);
+		Metrics.gauge("worker_batch_tiles_pending", pendingTiles::get);
+	}
+	
+	
+	static class Batch {
+		final int size;
+		final BlockingDeque<TileResult> done = new LinkedBlockingDeque<>();
+		volatile long touchedAt = System.currentTimeMillis();
+		volatile boolean dropped;
+		int taken;
+		
+		Batch(int size) {
+			this.size = size;
+		}
+	}
+	
+	
+	/**
+	 * Queues every tile of the batch; tile(slot) processes one of them.
+	 */
+	public static long start(TileBatch tiles, IntFunction<ImageProcessingResult[]> tile) {
+		expire();
+		
+		long id = nextId.incrementAndGet();
+		Batch batch = new Batch(tiles.size());
+		batches.put(id, batch);
+		pendingTiles.addAndGet(tiles.size());
+		
+		for (int slot = 0; slot < tiles.size(); slot++) {
+			final int s = slot;
+			pool.execute(() -> {
+				pendingTiles.decrementAndGet();
+				if (batch.dropped) {
+					return;
+				}
+				
+				ImageProcessingResult[] levels = tile.apply(s);
+				tiles.clear(s);
+				batch.done.add(new TileResult(tiles.getTileIndex(s), levels));
+			});
+		}
+		
+		return id;
+	}
+	
+	/**
+	 * Finished tiles not taken yet, waiting up to maxWaitMillis for the first one. null for
+	 * an unknown batch; the batch is forgotten once all its tiles are taken. The tiles after
+	 * the first stop at maxBytes (as in a BATCH_RESULTS frame), the others wait for the
+	 * next call.
+	 */
+	public static TileResult[] take(long id, long maxWaitMillis, long maxBytes) throws InterruptedException {
+		Batch batch = batches.get(id);
+		if (batch == null) {
+			return null;
+		}
+		
+		batch.touchedAt = System.currentTimeMillis();
+		List<TileResult> results = new ArrayList<>();
+		
+		TileResult next = batch.done.poll(maxWaitMillis, TimeUnit.MILLISECONDS);
+		long bytes = 0;
+		while (next != null) {
+			bytes += 4 + TileProtocol.levelsLength(next.getLevels());
+			if (!results.isEmpty() && bytes > maxBytes) {
+				batch.done.offerFirst(next);
+				break;
+			}
+			results.add(next);
+			next = batch.done.poll();
+		}
+		
+		synchronized (batch) {
+			batch.taken += results.size();
+			if (batch.taken >= batch.size) {
+				batches.remove(id);
+			}
+		}
+		batch.touchedAt = System.currentTimeMillis();
+		
+		return results.toArray(new TileResult[0]);
+	}
+	
+	public static int pendingTiles() {
+		return pendingTiles.get();
+	}
+	
+	
+	private static void expire() {
+		long now = System.currentTimeMillis();
+		
+		batches.entrySet().removeIf(entry -> {
+			Batch batch = entry.getValue();
+			if (now - batch.touchedAt <= batchTtlMs) {
+				return false;
+			}
+			
+			System.out.println("Dropping batch " + entry.getKey() + ", not polled for " + (now - batch.touchedAt) + " ms");
+			batch.dropped = true;
+			return true;
+		});
+	}
+}
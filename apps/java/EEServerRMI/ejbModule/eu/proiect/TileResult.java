@@ -0,0 +1,26 @@
+package eu.proiect;
+
+import java.io.Serializable;
+
+/**
+ * One finished tile of a TileBatch: its index in the image and one result per zoom level.
+ */
+public class TileResult implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    private final int tileIndex;
+    private final ImageProcessingResult[] levels;
+    
+    public TileResult(int tileIndex, ImageProcessingResult[] levels) {
+        this.tileIndex = tileIndex;
+        this.levels = levels;
+    }
+    
+    public int getTileIndex() {
+        return tileIndex;
+    }
+    
+    public ImageProcessingResult[] getLevels() {
+        return levels;
+    }
+}
@@ -0,0 +1,196 @@
+package eu.proiect;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Admission queue of the worker. RMI runs every incoming call on its own thread, so
+ * without it N consumers mean N decoded sources and N zoomed tiles on the heap at once.
+ *
+ * A call runs when fewer than WORKER_PARALLELISM calls are running and its estimated
+ * memory fits in WORKER_MEMORY_BUDGET_BYTES. Otherwise it waits, at most
+ * WORKER_QUEUE_TIMEOUT_MS and behind at most WORKER_QUEUE_SIZE other calls; past that it
+ * is refused at once and the caller gets a retryable "busy" result.
+ */
+public class WorkerAdmission {
+	// 0 = one per CPU
+	static final String WORKER_PARALLELISM = "0";
+	// 0 = 60% of the max heap
+	static final String WORKER_MEMORY_BUDGET_BYTES = "0";
+	static final String WORKER_QUEUE_SIZE = "16";
+	static final String WORKER_QUEUE_TIMEOUT_MS = "2000";
+	
+	private static final int parallelism = configured("WORKER_PARALLELISM", WORKER_PARALLELISM, Runtime.getRuntime().availableProcessors());
+	private static final long memoryBudget = configured("WORKER_MEMORY_BUDGET_BYTES", WORKER_MEMORY_BUDGET_BYTES, 
+			Runtime.getRuntime().maxMemory() / 10 * 6);
+	private static final int queueSize = Integer.parseInt(System.getenv().getOrDefault("WORKER_QUEUE_SIZE", WORKER_QUEUE_SIZE));
+	private static final long queueTimeoutMs = 
+			Long.parseLong(System.getenv().getOrDefault("WORKER_QUEUE_TIMEOUT_MS", WORKER_QUEUE_TIMEOUT_MS));
+	
+	private static final ReentrantLock lock = new ReentrantLock(true);
+	private static final Condition released = lock.newCondition();
+	
+	// guarded by lock, also when only read
+	private static int running;
+	private static int queued;
+	private static long reserved;
+	// moving average of the run time of a call, for the estimated wait
+	private static double averageServiceMs;
+	
+	static {
+		Metrics.gauge("worker_running", () -> locked(() -> running));
+		Metrics.gauge("worker_queued", () -> locked(() -> queued));
+		Metrics.gauge("worker_memory_reserved_bytes", () -> locked(() -> reserved));
+		System.out.println("Worker admission: " + parallelism + " parallel calls, " + memoryBudget / (1024 * 1024) + " MB budget, " 
+				+ queueSize + " queued at most, " + queueTimeoutMs + " ms max wait");
+	}
+	
+	
+	/**
+	 * A running call; release() it when done.
+	 */
+	public static class Ticket {
+		final long bytes;
+		final long startedAt = System.nanoTime();
+		
+		Ticket(long bytes) {
+			this.bytes = bytes;
+		}
+	}
+	
+	
+	/**
+	 * Waits for a slot and memoryBytes of the budget. null when the worker is saturated:
+	 * the queue is full or the wait timed out.
+	 */
+	public static Ticket acquire(long memoryBytes) throws InterruptedException {
+		// a call bigger than the whole budget still runs, alone
+		long bytes = Math.min(memoryBytes, memoryBudget);
+		long queuedAt = System.nanoTime();
+		
+		lock.lock();
+		try {
+			if (fits(bytes) && queued == 0) {
+				return admit(bytes, queuedAt);
+			}
+			if (queued >= queueSize) {
+				Metrics.increment("worker_rejected_total", "reason=\"queue_full\"");
+				return null;
+			}
+			
+			queued++;
+			try {
+				long nanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMs);
+				while (!fits(bytes)) {
+					if (nanos <= 0) {
+						Metrics.increment("worker_rejected_total", "reason=\"timeout\"");
+						return null;
+					}
+					nanos = released.awaitNanos(nanos);
+				}
+			} finally {
+				queued--;
+			}
+			
+			return admit(bytes, queuedAt);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Waits for a slot and the memory without a limit, for the tiles of a batch: they
+	 * already passed startBatch and are bounded by the batch pool.
+	 */
+	public static Ticket acquireWaiting(long memoryBytes) throws InterruptedException {
+		long bytes = Math.min(memoryBytes, memoryBudget);
+		long queuedAt = System.nanoTime();
+		
+		lock.lock();
+		try {
+			queued++;
+			try {
+				while (!fits(bytes)) {
+					released.await();
+				}
+			} finally {
+				queued--;
+			}
+			
+			return admit(bytes, queuedAt);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public static void release(Ticket ticket) {
+		double serviceMs = (System.nanoTime() - ticket.startedAt) / 1e6;
+		
+		lock.lock();
+		try {
+			averageServiceMs = averageServiceMs == 0 ? serviceMs : averageServiceMs * 0.9 + serviceMs * 0.1;
+			running--;
+			reserved -= ticket.bytes;
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public static WorkerStatus status() {
+		lock.lock();
+		try {
+			// tiles of batches that did not start yet wait as well
+			int waiting = queued + TileBatches.pendingTiles();
+			return new WorkerStatus(parallelism, running, waiting, queueSize, memoryBudget, reserved, estimatedWaitMillis(waiting));
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Calls ahead of a new one (running and queued) times the average run time, spread
+	 * over the parallel slots. Called with the lock held.
+	 */
+	private static long estimatedWaitMillis(int waiting) {
+		int ahead = running + waiting - parallelism + 1;
+		return ahead <= 0 ? 0 : (long) Math.ceil(ahead * averageServiceMs / parallelism);
+	}
+	
+	
+	public static int getParallelism() {
+		return parallelism;
+	}
+	
+	
+	private static long locked(LongSupplier value) {
+		lock.lock();
+		try {
+			return value.getAsLong();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private static boolean fits(long bytes) {
+		return running < parallelism && (running == 0 || reserved + bytes <= memoryBudget);
+	}
+	
+	private static Ticket admit(long bytes, long queuedAt) {
+		running++;
+		reserved += bytes;
+		Metrics.observe("worker_queue_wait", queuedAt, null);
+		return new Ticket(bytes);
+	}
+	
+	private static long configured(String name, String defaultValue, long fallback) {
+		long value = Long.parseLong(System.getenv().getOrDefault(name, defaultValue));
+		return value > 0 ? value : fallback;
+	}
+	
+	private static int configured(String name, String defaultValue, int fallback) {
+		return (int) configured(name, defaultValue, (long) fallback);
+	}
+}
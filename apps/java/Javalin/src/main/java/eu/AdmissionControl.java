@@ -0,0 +1,296 @@
+package eu;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TemporaryQueue;
+
+import org.apache.activemq.artemis.api.core.management.ResourceNames;
+import org.apache.activemq.artemis.api.jms.management.JMSManagementHelper;
+
+/**
+ * Admission control for uploads.
+ *
+ * An upload is in flight from the moment it is published until all its zoom levels are
+ * notified (or ADMISSION_INFLIGHT_TTL_MS passed, for images that failed). A new upload is
+ * refused with 429 when the in-flight count or bytes, or the depth of the broker
+ * destination, is over its budget. With ADMISSION_FAIR_SHARE a client gets at most its
+ * share of the in-flight budget while other clients are waiting as well: those holding
+ * slots and those refused in the last ADMISSION_WAITING_TTL_MS (they are retrying).
+ */
+public class AdmissionControl {
+	static final String ADMISSION_MAX_INFLIGHT = "64";
+	static final String ADMISSION_MAX_INFLIGHT_BYTES = String.valueOf(4L * 1024 * 1024 * 1024);
+	static final String ADMISSION_MAX_QUEUE_DEPTH = "128";
+	// 0 = no fixed limit per client
+	static final String ADMISSION_PER_CLIENT_MAX = "0";
+	static final String ADMISSION_FAIR_SHARE = "false";
+	static final String ADMISSION_INFLIGHT_TTL_MS = String.valueOf(10 * 60 * 1000);
+	static final String ADMISSION_DEPTH_POLL_MS = "1000";
+	static final String ADMISSION_RETRY_AFTER_S = "5";
+	// a refused client counts for the fair share this long after its last refusal
+	static final String ADMISSION_WAITING_TTL_MS = "30000";
+
+	static final String MANAGEMENT_ADDRESS = "activemq.management";
+
+	private static final int maxInFlight =
+			Integer.parseInt(System.getenv().getOrDefault("ADMISSION_MAX_INFLIGHT", ADMISSION_MAX_INFLIGHT));
+	private static final long maxInFlightBytes =
+			Long.parseLong(System.getenv().getOrDefault("ADMISSION_MAX_INFLIGHT_BYTES", ADMISSION_MAX_INFLIGHT_BYTES));
+	private static final long maxQueueDepth =
+			Long.parseLong(System.getenv().getOrDefault("ADMISSION_MAX_QUEUE_DEPTH", ADMISSION_MAX_QUEUE_DEPTH));
+	private static final int perClientMax =
+			Integer.parseInt(System.getenv().getOrDefault("ADMISSION_PER_CLIENT_MAX", ADMISSION_PER_CLIENT_MAX));
+	private static final boolean fairShare =
+			Boolean.parseBoolean(System.getenv().getOrDefault("ADMISSION_FAIR_SHARE", ADMISSION_FAIR_SHARE));
+	private static final long inFlightTtlMs =
+			Long.parseLong(System.getenv().getOrDefault("ADMISSION_INFLIGHT_TTL_MS", ADMISSION_INFLIGHT_TTL_MS));
+	private static final int defaultRetryAfter =
+			Integer.parseInt(System.getenv().getOrDefault("ADMISSION_RETRY_AFTER_S", ADMISSION_RETRY_AFTER_S));
+	private static final long waitingTtlMs =
+			Long.parseLong(System.getenv().getOrDefault("ADMISSION_WAITING_TTL_MS", ADMISSION_WAITING_TTL_MS));
+
+	private static final Map<String, Upload> inFlight = new ConcurrentHashMap<>();
+	private static final Map<String, Integer> perClient = new ConcurrentHashMap<>();
+	// client -> time of its last refusal
+	private static final Map<String, Long> waiting = new ConcurrentHashMap<>();
+
+	private static int inFlightCount;
+	private static long inFlightBytes;
+	// -1 while the depth is unknown (management not reachable), it is then ignored
+	private static volatile long queueDepth = -1;
+	// moving average of publish -> last notification, for Retry-After
+	private static volatile double averageLatencyMs;
+
+	private static final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "admission-depth");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+
+	static class Upload {
+		final String client;
+		final long bytes;
+		final long admittedAt = System.currentTimeMillis();
+		int pendingLevels = 1;
+
+		Upload(String client, long bytes) {
+			this.client = client;
+			this.bytes = bytes;
+		}
+	}
+
+
+	/**
+	 * Polls the message count of the upload destination through the Artemis management
+	 * address, so a refused upload never costs a round trip to the broker.
+	 */
+	public static void start(Connection conn, String destinationName) {
+		Metrics.gauge("uploads_in_flight", () -> inFlight.size());
+		Metrics.gauge("broker_queue_depth", () -> queueDepth);
+		Metrics.gauge("admission_waiting_clients", () -> waiting.size());
+		long pollMs = Long.parseLong(System.getenv().getOrDefault("ADMISSION_DEPTH_POLL_MS", ADMISSION_DEPTH_POLL_MS));
+
+		poller.scheduleWithFixedDelay(() -> {
+			pollQueueDepth(conn, destinationName);
+			expireStale();
+		}, 0, pollMs, TimeUnit.MILLISECONDS);
+
+		System.out.println("Admission control: " + maxInFlight + " uploads / " + maxInFlightBytes + " bytes in flight, queue depth "
+				+ maxQueueDepth + ", per client " + perClientMax + ", fair share " + fairShare);
+	}
+
+	/**
+	 * Reserves a slot for an upload. Returns 0 when it is admitted, otherwise the seconds
+	 * the client should wait before trying again.
+	 */
+	public static synchronized int tryAdmit(String uploadId, String client, long bytes) {
+		long depth = queueDepth;
+		String reason = null;
+		// metric label, without the values
+		String cause = null;
+
+		if (inFlightCount >= maxInFlight) {
+			reason = "in-flight uploads " + inFlightCount;
+			cause = "in_flight";
+		} else if (inFlightCount > 0 && inFlightBytes + Math.max(bytes, 0) > maxInFlightBytes) {
+			reason = "in-flight bytes " + inFlightBytes;
+			cause = "in_flight_bytes";
+		} else if (depth >= 0 && depth >= maxQueueDepth) {
+			reason = "queue depth " + depth;
+			cause = "queue_depth";
+		} else if (perClient.getOrDefault(client, 0) >= clientLimit(client)) {
+			reason = "client " + client + " limit " + clientLimit(client);
+			cause = "client_limit";
+		}
+
+		if (reason != null) {
+			Metrics.increment("uploads_rejected_total", "reason=\"" + cause + "\"");
+			System.out.println("Upload refused (" + reason + "), retry after " + retryAfterSeconds() + " s");
+			waiting.put(client, System.currentTimeMillis());
+			return retryAfterSeconds();
+		}
+		waiting.remove(client);
+
+		inFlight.put(uploadId, new Upload(client, Math.max(bytes, 0)));
+		inFlightCount++;
+		inFlightBytes += Math.max(bytes, 0);
+		perClient.merge(client, 1, Integer::sum);
+
+		return 0;
+	}
+
+	/**
+	 * Known once the zoom parameter is read: one completion event comes per level.
+	 */
+	public static synchronized void expectLevels(String uploadId, int levels) {
+		Upload upload = inFlight.get(uploadId);
+		if (upload != null) {
+			upload.pendingLevels = levels;
+		}
+	}
+
+	/**
+	 * A zoom level of the upload is ready; the slot is given back after the last one.
+	 */
+	public static synchronized void completed(String uploadId) {
+		Upload upload = inFlight.get(uploadId);
+		if (upload == null || --upload.pendingLevels > 0) {
+			return;
+		}
+
+		long latency = System.currentTimeMillis() - upload.admittedAt;
+		Metrics.observeSeconds("end_to_end", latency / 1000.0, uploadId);
+		averageLatencyMs = averageLatencyMs == 0 ? latency : averageLatencyMs * 0.8 + latency * 0.2;
+
+		release(uploadId);
+	}
+
+	/**
+	 * The upload never reached the broker.
+	 */
+	public static synchronized void release(String uploadId) {
+		Upload upload = inFlight.remove(uploadId);
+		if (upload == null) {
+			return;
+		}
+
+		inFlightCount--;
+		inFlightBytes -= upload.bytes;
+		perClient.computeIfPresent(upload.client, (client, count) -> count > 1 ? count - 1 : null);
+	}
+
+
+	private static int clientLimit(String client) {
+		int limit = perClientMax > 0 ? perClientMax : maxInFlight;
+
+		if (fairShare) {
+			// the clients holding slots, those still retrying after a refusal, and this one
+			long recent = System.currentTimeMillis() - waitingTtlMs;
+			Set<String> clients = new HashSet<>(perClient.keySet());
+			waiting.forEach((other, refusedAt) -> {
+				if (refusedAt >= recent) {
+					clients.add(other);
+				}
+			});
+			clients.add(client);
+			limit = Math.min(limit, Math.max(1, maxInFlight / clients.size()));
+		}
+
+		return limit;
+	}
+
+	// time for one in-flight upload to finish: latency / concurrency (Little's law)
+	private static int retryAfterSeconds() {
+		if (averageLatencyMs == 0 || inFlightCount == 0) {
+			return defaultRetryAfter;
+		}
+
+		int seconds = (int) Math.ceil(averageLatencyMs / inFlightCount / 1000);
+		return Math.max(1, Math.min(seconds, 60));
+	}
+
+	private static synchronized void expireStale() {
+		long oldest = System.currentTimeMillis() - inFlightTtlMs;
+		long recent = System.currentTimeMillis() - waitingTtlMs;
+		waiting.values().removeIf(refusedAt -> refusedAt < recent);
+
+		inFlight.entrySet().stream()
+				.filter(entry -> entry.getValue().admittedAt < oldest)
+				.map(Map.Entry::getKey)
+				.toList()
+				.forEach(uploadId -> {
+					System.out.println("Upload " + uploadId + " was never notified, slot released");
+					release(uploadId);
+				});
+	}
+
+	// reused between polls, opened again after a failure
+	private static Session managementSession;
+	private static MessageProducer managementProducer;
+	private static MessageConsumer managementReplies;
+	private static TemporaryQueue replyQueue;
+
+	private static void pollQueueDepth(Connection conn, String destinationName) {
+		try {
+			if (managementSession == null) {
+				managementSession = conn.createSession(false, Session.AUTO_ACKNOWLEDGE);
+				managementProducer = managementSession.createProducer(
+						managementSession.createQueue(AdmissionControl.MANAGEMENT_ADDRESS));
+				replyQueue = managementSession.createTemporaryQueue();
+				managementReplies = managementSession.createConsumer(replyQueue);
+			}
+
+			Message request = managementSession.createMessage();
+			request.setJMSReplyTo(replyQueue);
+			JMSManagementHelper.putAttribute(request, ResourceNames.ADDRESS + destinationName, "messageCount");
+			managementProducer.send(request);
+
+			Message response = managementReplies.receive(2000);
+			if (response != null && JMSManagementHelper.hasOperationSucceeded(response)) {
+				queueDepth = ((Number) JMSManagementHelper.getResult(response)).longValue();
+			} else {
+				queueDepth = -1;
+			}
+		} catch (Exception e) {
+			if (queueDepth != -1) {
+				System.err.println("Could not read the depth of " + destinationName + ": " + e.getMessage());
+			}
+			queueDepth = -1;
+			closeManagementSession();
+		}
+	}
+
+	private static void closeManagementSession() {
+		if (managementSession != null) {
+			try {
+				// the temporary queue goes with the session's connection, delete it now
+				managementReplies.close();
+				replyQueue.delete();
+			} catch (Exception e) {
+				// connection is gone, nothing to delete
+			}
+			try {
+				managementSession.close();
+			} catch (JMSException e) {
+				// connection is gone, nothing to close
+			}
+		}
+		managementSession = null;
+		managementProducer = null;
+		managementReplies = null;
+		replyQueue = null;
+	}
+}
@@ -6,11 +6,12 @@ import io.javalin.http.Context;
 import io.javalin.http.UploadedFile;
 import jakarta.servlet.MultipartConfigElement;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
 
 import javax.jms.*;
 
@@ -20,17 +21,39 @@ import org.jgroups.util.UUID;
 public class App {
 	static final long MAX_FILE_SIZE = 2L * 1024 * 1024 * 1024; // 5 GB
 	private static Connection conn;
+	private static ProducerPool producers;
 	static final int PORT = 8081;
 	
 	static final String BROKER_URL_DEFAULT = "tcp://localhost:61616";
 	static final String BROKER_USER_DEFAULT = "admin";
 	static final String BROKER_PASSWORD_DEFAULT = "admin";
 	
+	// "queue": one consumer container takes each image, "topic": every consumer gets it
+	static final String DELIVERY_MODE_DEFAULT = "queue";
+	static final String QUEUE_NAME = "image.queue";
+	static final String TOPIC_NAME = "image.topic";
+	
+	// request handlers on virtual threads: a slow upload parks instead of holding a pool thread
+	static final String JAVALIN_VIRTUAL_THREADS = "true";
+	
+	// zoom levels one upload may ask for ("zoom=0.5,2,4")
+	static final String MAX_ZOOM_LEVELS = "4";
+	
+	// resampling filters of the RMI workers, "graphics2d" is the Java2D drawImage path
+	static final List<String> RESAMPLE_FILTERS = List.of("area", "bilinear", "bicubic", "lanczos", "graphics2d");
+	
+	// checked on the image header before anything is published
+	static final String IMAGE_MAX_PIXELS = "250000000";
+	static final String IMAGE_MAX_OUTPUT_PIXELS = "1000000000";
+	// the JPEG frame header may come after EXIF / ICC segments
+	static final String IMAGE_HEADER_MAX_BYTES = "262144";
+	
 
 
 	public static void main(String[] args) {
 		try {
 			App.configureBroker();
+			StatusSubscriber.start(conn);
 		} catch (JMSException e) {
 			System.err.println("Could not connect to JMS broker: " + e.getMessage());
 			e.printStackTrace();
@@ -42,10 +65,20 @@ public class App {
 		
 		app.get("/", ctx -> ctx.result("Javalin REST + JSM Publisher  is running"));
 		
+		// Prometheus text format
+		app.get("/metrics", ctx -> ctx.contentType("text/plain; version=0.0.4").result(Metrics.render()));
+		
 		app.post("/upload-and-process",  ctx -> App.upload(ctx));
 		
+		app.post("/upload-stream",  ctx -> App.uploadStream(ctx));
+		
+		app.get("/images/{id}/zoomed", ctx -> ImageDownload.zoomed(ctx));
+		
+		app.get("/images/{id}/original", ctx -> ImageDownload.original(ctx));
+		
 		app.ws("/ws/notifications", ws -> Websocket.notifications(ws));
 		
+		// the consumers publish on the image.status queue, this stays for NOTIFY_MODE=http
 		app.post("/notify/image/status", ctx -> App.updateStatusImage(ctx));
 
 	}
@@ -69,8 +102,12 @@ public class App {
 		
 		// convert string to long 
 		long rowId = Long.parseLong(idInserted);
+		String zoomParam = ctx.formParam("zoom");
+		double zoom = zoomParam == null ? 0 : Double.parseDouble(zoomParam);
 		
-		Websocket.alertUserThatImageIsReady(uploadId, rowId);
+		AdmissionControl.completed(uploadId);
+		HotImageCache.prefetch(rowId);
+		Websocket.alertUserThatImageIsReady(uploadId, rowId, zoom);
 		
 
 		ctx.status(200).result("sent broadcast");
@@ -78,114 +115,246 @@ public class App {
 	}
 	
 	protected static void upload(Context ctx) {
-		UploadedFile uploadFile = ctx.uploadedFile("file");
+		String uploadId = UUID.randomUUID().toString();
 		
-		if(uploadFile == null) {
-			ctx.status(404).result("The image not found!");
+		// checked before the multipart body is read, a refused upload costs nothing
+		if (!App.admit(ctx, uploadId)) {
 			return;
 		}
 		
-		
-		String originalFilename = uploadFile.filename();
-		String prefix = "upload-";
-		String suffix = "";
-		
+		boolean published = false;
+		try {
+			UploadedFile uploadFile = ctx.uploadedFile("file");
+			
+			if(uploadFile == null) {
+				ctx.status(404).result("The image not found!");
+				return;
+			}
+			
+			double[] zooms;
+			
+			try {
+				zooms = App.parseZooms(ctx.formParam("zoom"));
+			} catch (NumberFormatException e) {
+				ctx.status(400).result("zoom are mandatory and must be numeric");	
+				return;
+			} catch (IllegalArgumentException e) {
+				ctx.status(400).result("zoom must be between 0.1 and 10, at most " + App.MAX_ZOOM_LEVELS + " levels");
+				return;
+			}
+			
+			String filter = ctx.formParam("filter");
+			if (!App.isValidFilter(filter)) {
+				ctx.status(400).result("filter must be one of " + App.RESAMPLE_FILTERS);
+				return;
+			}
+			
+			// the multipart part is read straight into the broker, no copy to another temp file
+			try (InputStream is = new BufferedInputStream(uploadFile.content())) {
+				ImageHeader header = App.inspect(ctx, is, zooms);
+				if (header == null) {
+					return;
+				}
+				
+				AdmissionControl.expectLevels(uploadId, zooms.length);
+				App.sendToBroker(is, zooms, filter, header, uploadId);
+				published = true;
+				
+				ctx.result(uploadId);
+			} catch (JMSException | IOException | InterruptedException e) {
+				System.err.println("Failed to send message to broker!");
+				e.printStackTrace();
+				ctx.status(503).result("The image could not be queued for processing");
+			}
+		} finally {
+			if (!published) {
+				AdmissionControl.release(uploadId);
+			}
+		}
+	}
+	
+	/**
+	 * Raw upload: the request body is the image (zoom in the query string). The body is
+	 * piped to the broker while it arrives, it never touches the disk of this container.
+	 */
+	protected static void uploadStream(Context ctx) {
 		String uploadId = UUID.randomUUID().toString();
+		double[] zooms;
 		
-		// extragem extensia
-		if (originalFilename != null && originalFilename.contains(".")) {
-			suffix = originalFilename.substring(originalFilename.lastIndexOf("."));
+		try {
+			zooms = App.parseZooms(ctx.queryParam("zoom"));
+		} catch (NumberFormatException e) {
+			ctx.status(400).result("zoom are mandatory and must be numeric");	
+			return;
+		} catch (IllegalArgumentException e) {
+			ctx.status(400).result("zoom must be between 0.1 and 10, at most " + App.MAX_ZOOM_LEVELS + " levels");
+			return;
 		}
 		
+		String filter = ctx.queryParam("filter");
+		if (!App.isValidFilter(filter)) {
+			ctx.status(400).result("filter must be one of " + App.RESAMPLE_FILTERS);
+			return;
+		}
 		
-		Path tempFile = null;
+		if (!App.admit(ctx, uploadId)) {
+			return;
+		}
+		AdmissionControl.expectLevels(uploadId, zooms.length);
 		
-		try {
-			tempFile = Files.createTempFile(prefix, suffix);
-		} catch (IOException e) {
-
+		boolean published = false;
+		try (InputStream is = new BufferedInputStream(ctx.bodyInputStream())) {
+			ImageHeader header = App.inspect(ctx, is, zooms);
+			if (header == null) {
+				return;
+			}
+			
+			App.sendToBroker(is, zooms, filter, header, uploadId);
+			published = true;
+			
+			ctx.result(uploadId);
+		} catch (JMSException | IOException | InterruptedException e) {
+			System.err.println("Failed to send message to broker!");
 			e.printStackTrace();
+			ctx.status(503).result("The image could not be queued for processing");
+		} finally {
+			if (!published) {
+				AdmissionControl.release(uploadId);
+			}
 		}
+	}
+	
+	/**
+	 * Reads format, size and bit depth from the header (no decoding) and applies the size
+	 * limits. Returns null when the image is refused, the response is already set then.
+	 * The stream is reset, nothing of it is lost for the broker.
+	 */
+	private static ImageHeader inspect(Context ctx, InputStream is, double[] zooms) throws IOException {
+		int maxHeaderBytes = Integer.parseInt(System.getenv().getOrDefault("IMAGE_HEADER_MAX_BYTES", App.IMAGE_HEADER_MAX_BYTES));
+		long maxPixels = Long.parseLong(System.getenv().getOrDefault("IMAGE_MAX_PIXELS", App.IMAGE_MAX_PIXELS));
+		long maxOutputPixels = Long.parseLong(System.getenv().getOrDefault("IMAGE_MAX_OUTPUT_PIXELS", App.IMAGE_MAX_OUTPUT_PIXELS));
 		
-		try (InputStream is = uploadFile.content()) {
-			Files.copy(is, tempFile, StandardCopyOption.REPLACE_EXISTING);
+		ImageHeader header;
+		is.mark(maxHeaderBytes);
+		try {
+			header = ImageHeader.read(is, maxHeaderBytes);
 		} catch (IOException e) {
-
-			e.printStackTrace();
+			Metrics.increment("uploads_invalid_total", "reason=\"malformed\"");
+			ctx.status(400).result("Not a valid image: " + e.getMessage());
+			return null;
 		}
+		is.reset();
 		
-		try {
-			double zoom = Double.parseDouble(ctx.formParam("zoom"));
-			
+		if (header.getPixels() > maxPixels) {
+			Metrics.increment("uploads_invalid_total", "reason=\"pixels\"");
+			ctx.status(413).result("Image too large: " + header.width + "x" + header.height + ", at most " + maxPixels + " pixels");
+			return null;
+		}
+		
+		for (double zoom : zooms) {
+			long outputPixels = Math.round(header.width * zoom) * Math.round(header.height * zoom);
 			
-			if (zoom < 0.1 || zoom > 10) {
-				throw new Exception("Zoom must be between 0.1 and 10");
+			if (outputPixels > maxOutputPixels) {
+				Metrics.increment("uploads_invalid_total", "reason=\"output_pixels\"");
+				ctx.status(413).result("Zoom " + zoom + " gives " + outputPixels + " pixels, at most " + maxOutputPixels);
+				return null;
 			}
-			
-			App.sendToBroker(tempFile, zoom, uploadId);
-			
-			ctx.result(uploadId);
+		}
 		
-		} catch (NumberFormatException e) {
-			ctx.status(400).result("zoom are mandatory and must be numeric");	
-		} catch (Exception e) {
-			ctx.status(400).result("zoom must be between 0.1 and 10");
+		System.out.println("Image header: " + header);
+		return header;
+	}
+	
+	/**
+	 * 429 with Retry-After when the pipeline is over its budget.
+	 */
+	private static boolean admit(Context ctx, String uploadId) {
+		int retryAfter = AdmissionControl.tryAdmit(uploadId, ctx.ip(), ctx.req().getContentLengthLong());
+		
+		if (retryAfter > 0) {
+			ctx.header("Retry-After", String.valueOf(retryAfter));
+			ctx.status(429).result("Too many images in processing, retry in " + retryAfter + " s");
+			return false;
 		}
 		
+		return true;
 	}
 	
+	// filter is optional, the workers have a default
+	private static boolean isValidFilter(String filter) {
+		return filter == null || filter.isBlank() || App.RESAMPLE_FILTERS.contains(filter.toLowerCase());
+	}
 	
-	protected static void sendToBroker(Path tempFile, double zoom, String uploadId) {
-		try { 
-			Session session = conn.createSession(false, Session.AUTO_ACKNOWLEDGE);
-
-			FileInputStream fis = new FileInputStream(tempFile.toString());
-			Topic topic = session.createTopic("image.topic");
-			// Queue queue = session.createQueue("image.queue");
-			MessageProducer producer = session.createProducer(topic);
-			
-			BytesMessage message = session.createBytesMessage();
-			byte[] buffer = new byte[1024 * 1024];
-			int read;
-			
-			while((read = fis.read(buffer)) != -1) {
-				message.writeBytes(buffer, 0, read);
+	/**
+	 * "2" or a list like "0.5,2,4": every level is produced from the same upload and
+	 * decoded once by the consumer. Repeated values are dropped.
+	 */
+	private static double[] parseZooms(String value) {
+		if (value == null || value.isBlank()) {
+			throw new NumberFormatException("zoom is missing");
+		}
+		
+		double[] zooms = Arrays.stream(value.split(","))
+				.map(String::trim)
+				.mapToDouble(Double::parseDouble)
+				.distinct()
+				.toArray();
+		
+		int maxLevels = Integer.parseInt(System.getenv().getOrDefault("MAX_ZOOM_LEVELS", App.MAX_ZOOM_LEVELS));
+		if (zooms.length > maxLevels) {
+			throw new IllegalArgumentException("Too many zoom levels: " + zooms.length);
+		}
+		
+		for (double zoom : zooms) {
+			if (zoom < 0.1 || zoom > 10) {
+				throw new IllegalArgumentException("Zoom must be between 0.1 and 10");
 			}
-			
-			message.setDoubleProperty("zoom", zoom);
-			
-			message.setStringProperty("uploadId", uploadId); // for tracking
-			
-			producer.setDeliveryMode(DeliveryMode.PERSISTENT);
-			producer.send(message);
-			
-			System.out.println("Message ID: " + message.getJMSMessageID());
-	        System.out.println("Message sent successfully to queue: image.queue");
-	        System.out.println("Zoom: (" + zoom + ")");
-	        System.out.println("File: " + tempFile);
-			
-			fis.close();
-			session.close();
-			producer.close();
+		}
+		
+		return zooms;
+	}
 	
+	
+	/**
+	 * Sends the image as an Artemis large message: the client reads the stream in chunks
+	 * while it sends, the whole image is never buffered in this process.
+	 */
+	protected static void sendToBroker(InputStream content, double[] zooms, String filter, ImageHeader header, String uploadId) throws JMSException, InterruptedException {
+		long start = System.nanoTime();
+		CountingInputStream counted = new CountingInputStream(content);
+		
+		producers.send(session -> {
+			BytesMessage message = session.createBytesMessage();
+			message.setObjectProperty("JMS_AMQ_InputStream", counted);
 			
-		} catch (JMSException e) {
-			System.err.println("Failed to send message to broker!");
-			e.printStackTrace();
-			
+			// "zoom" stays the first level for consumers that know only one
+			message.setDoubleProperty("zoom", zooms[0]);
+			message.setStringProperty("zooms", Arrays.stream(zooms)
+					.mapToObj(Double::toString)
+					.collect(Collectors.joining(",")));
 			
+			message.setStringProperty("uploadId", uploadId); // for tracking
 			
+			// resampling filter of the workers, absent = their default
+			if (filter != null && !filter.isBlank()) {
+				message.setStringProperty("filter", filter.toLowerCase());
+			}
 			
-			// 
+			// from the header, the consumer plans the tiles without decoding first
+			message.setStringProperty("format", header.format);
+			message.setIntProperty("width", header.width);
+			message.setIntProperty("height", header.height);
+			message.setIntProperty("bitDepth", header.bitDepth);
 			
-		} catch (FileNotFoundException e) {
-
-			e.printStackTrace();
-		} catch (IOException e) {
-			System.err.println("Failed to read file!");
-			e.printStackTrace();
-		}
-
+			return message;
+		}, uploadId);
+		
+        // the body is streamed while it is sent, this is upload + publish
+        Metrics.observe("upload_publish", start, uploadId);
+        Metrics.addBytes("upload", counted.getCount());
+        
+        System.out.println("Message sent successfully to: " + producers.getDestination());
+        System.out.println("Zoom: " + Arrays.toString(zooms));
 	}
 	
 	private static void configureBroker() throws JMSException {
@@ -196,15 +365,25 @@ public class App {
         ConnectionFactory factory = (ConnectionFactory) new ActiveMQConnectionFactory(brokerUrl);
         conn = factory.createConnection(brokerUser, brokerPass);
         conn.start();
+        
+        String deliveryMode = System.getenv().getOrDefault("DELIVERY_MODE", App.DELIVERY_MODE_DEFAULT);
+        boolean topic = "topic".equalsIgnoreCase(deliveryMode);
+        producers = new ProducerPool(conn, topic ? App.TOPIC_NAME : App.QUEUE_NAME, topic);
+        AdmissionControl.start(conn, topic ? App.TOPIC_NAME : App.QUEUE_NAME);
 	}
 	
 	private static Javalin configJavalin() {
 		Javalin app = Javalin.create(config -> {
 			
+			config.useVirtualThreads = Boolean.parseBoolean(
+					System.getenv().getOrDefault("JAVALIN_VIRTUAL_THREADS", App.JAVALIN_VIRTUAL_THREADS));
+			
 			config.bundledPlugins.enableCors(cors -> {
 				cors.addRule(it -> {
 					it.anyHost();
 					it.allowedOrigins();
+					// read by the upload form on 429
+					it.exposeHeader("Retry-After");
 				});
 			});
 			
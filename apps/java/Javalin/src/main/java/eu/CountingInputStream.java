@@ -0,0 +1,46 @@
+package eu;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read through it, for the upload byte counter (the size of a streamed
+ * upload is known only once it is sent).
+ */
+public class CountingInputStream extends FilterInputStream {
+	private long count;
+	
+	public CountingInputStream(InputStream in) {
+		super(in);
+	}
+	
+	public long getCount() {
+		return count;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b >= 0) {
+			count++;
+		}
+		return b;
+	}
+	
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		int read = super.read(buffer, offset, length);
+		if (read > 0) {
+			count += read;
+		}
+		return read;
+	}
+	
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = super.skip(n);
+		count += skipped;
+		return skipped;
+	}
+}
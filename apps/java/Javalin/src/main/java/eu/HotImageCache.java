@@ -0,0 +1,88 @@
+package eu;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Recently completed images, kept in memory up to IMAGE_CACHE_BYTES in total (LRU).
+ * 
+ * When the completion event of an image arrives the zoomed result is loaded here in the
+ * background, so the client that is notified over the WebSocket downloads it from memory.
+ * Images bigger than IMAGE_CACHE_MAX_ENTRY_BYTES are always streamed from the store.
+ */
+public class HotImageCache {
+	static final String IMAGE_CACHE_BYTES = String.valueOf(256L * 1024 * 1024);
+	static final String IMAGE_CACHE_MAX_ENTRY_BYTES = String.valueOf(32L * 1024 * 1024);
+	
+	private static final long maxBytes = 
+			Long.parseLong(System.getenv().getOrDefault("IMAGE_CACHE_BYTES", IMAGE_CACHE_BYTES));
+	private static final long maxEntryBytes = 
+			Long.parseLong(System.getenv().getOrDefault("IMAGE_CACHE_MAX_ENTRY_BYTES", IMAGE_CACHE_MAX_ENTRY_BYTES));
+	
+	private static final Map<String, byte[]> entries = new LinkedHashMap<>(64, 0.75f, true);
+	private static long currentBytes;
+	
+	private static final ExecutorService prefetcher = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "image-prefetch");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	
+	public static boolean fits(long size) {
+		return size <= maxEntryBytes && size <= maxBytes;
+	}
+	
+	public static byte[] get(ImageStore.ImageInfo info) {
+		synchronized (entries) {
+			return entries.get(key(info));
+		}
+	}
+	
+	public static void put(ImageStore.ImageInfo info, byte[] content) {
+		if (!fits(content.length)) {
+			return;
+		}
+		
+		synchronized (entries) {
+			byte[] previous = entries.put(key(info), content);
+			if (previous != null) {
+				currentBytes -= previous.length;
+			}
+			currentBytes += content.length;
+			
+			Iterator<byte[]> eldest = entries.values().iterator();
+			while (currentBytes > maxBytes && eldest.hasNext()) {
+				currentBytes -= eldest.next().length;
+				eldest.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Loads the zoomed image of a row that just completed, off the caller thread.
+	 */
+	public static void prefetch(long rowId) {
+		prefetcher.execute(() -> {
+			try {
+				ImageStore.ImageInfo info = ImageStore.find(rowId, ImageStore.Kind.ZOOMED);
+				
+				if (info != null && fits(info.size) && get(info) == null) {
+					put(info, ImageStore.readAll(info));
+					System.out.println("Image " + rowId + " cached (" + info.size + " bytes)");
+				}
+			} catch (Exception e) {
+				System.err.println("Could not prefetch image " + rowId + ": " + e.getMessage());
+			}
+		});
+	}
+	
+	
+	// the hash is part of the key, a row that changes content is a new entry
+	private static String key(ImageStore.ImageInfo info) {
+		return info.id + ":" + info.kind + ":" + info.hash;
+	}
+}
@@ -0,0 +1,168 @@
+package eu;
+
+import java.io.OutputStream;
+
+import io.javalin.http.Context;
+
+/**
+ * GET /images/{id}/zoomed and /images/{id}/original.
+ * 
+ * Supports a single HTTP Range (206 / 416), a strong ETag from the content hash with
+ * If-None-Match (304), and serves from HotImageCache when the image is there; otherwise
+ * the bytes are streamed from MySQL or the blob store without loading the whole image.
+ */
+public class ImageDownload {
+	
+	public static void zoomed(Context ctx) {
+		ImageDownload.serve(ctx, ImageStore.Kind.ZOOMED);
+	}
+	
+	public static void original(Context ctx) {
+		ImageDownload.serve(ctx, ImageStore.Kind.ORIGINAL);
+	}
+	
+	
+	private static void serve(Context ctx, ImageStore.Kind kind) {
+		long id;
+		try {
+			id = Long.parseLong(ctx.pathParam("id"));
+		} catch (NumberFormatException e) {
+			ctx.status(400).result("id must be numeric");
+			return;
+		}
+		
+		try {
+			ImageStore.ImageInfo info = ImageStore.find(id, kind);
+			if (info == null) {
+				ctx.status(404).result("The image not found!");
+				return;
+			}
+			
+			String etag = info.hash != null ? "\"" + info.hash + "\"" : null;
+			
+			ctx.header("Accept-Ranges", "bytes");
+			ctx.contentType("image/" + (info.typeImage != null ? info.typeImage : "bmp"));
+			if (etag != null) {
+				ctx.header("ETag", etag);
+				// content addressed, the bytes behind this id never change
+				ctx.header("Cache-Control", "public, max-age=31536000, immutable");
+				
+				if (matches(ctx.header("If-None-Match"), etag)) {
+					ctx.status(304);
+					return;
+				}
+			}
+			
+			long start = 0;
+			long end = info.size - 1;
+			String range = ctx.header("Range");
+			
+			// If-Range: the range is only valid for the same content
+			String ifRange = ctx.header("If-Range");
+			if (range != null && ifRange != null && (etag == null || !ifRange.equals(etag))) {
+				range = null;
+			}
+			
+			if (range != null) {
+				long[] bounds = parseRange(range, info.size);
+				
+				if (bounds == null) {
+					ctx.status(416).header("Content-Range", "bytes */" + info.size);
+					return;
+				}
+				if (bounds.length == 2) {
+					start = bounds[0];
+					end = bounds[1];
+					ctx.status(206).header("Content-Range", "bytes " + start + "-" + end + "/" + info.size);
+				}
+			}
+			
+			long length = end - start + 1;
+			ctx.header("Content-Length", String.valueOf(length));
+			
+			OutputStream out = ctx.outputStream();
+			byte[] cached = HotImageCache.get(info);
+			long sendStart = System.nanoTime();
+			
+			Metrics.increment("downloads_total", "cache=\"" + (cached != null ? "hit" : "miss") + "\"");
+			
+			if (cached != null) {
+				out.write(cached, (int) start, (int) length);
+			} else if (start == 0 && length == info.size && HotImageCache.fits(info.size)) {
+				cached = ImageStore.readAll(info);
+				HotImageCache.put(info, cached);
+				out.write(cached);
+			} else {
+				ImageStore.copyRange(info, start, length, out);
+			}
+			out.flush();
+			
+			Metrics.observe("download", sendStart, null);
+			Metrics.addBytes("download", length);
+			
+		} catch (Exception e) {
+			e.printStackTrace();
+			if (!ctx.res().isCommitted()) {
+				ctx.status(500).result("The image could not be read");
+			}
+		}
+	}
+	
+	private static boolean matches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		
+		for (String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.equals("*") || candidate.equals(etag) || candidate.equals("W/" + etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Parses "bytes=a-b", "bytes=a-" and "bytes=-n". Returns {start, end}, an empty array
+	 * when the header is ignored (other unit, several ranges) and null when the range
+	 * cannot be satisfied.
+	 */
+	private static long[] parseRange(String header, long size) {
+		if (!header.startsWith("bytes=") || header.contains(",")) {
+			return new long[0];
+		}
+		
+		String spec = header.substring("bytes=".length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0) {
+			return new long[0];
+		}
+		
+		try {
+			String from = spec.substring(0, dash).trim();
+			String to = spec.substring(dash + 1).trim();
+			long start;
+			long end;
+			
+			if (from.isEmpty()) {
+				// suffix: the last n bytes
+				long suffix = Long.parseLong(to);
+				if (suffix <= 0) {
+					return null;
+				}
+				start = Math.max(0, size - suffix);
+				end = size - 1;
+			} else {
+				start = Long.parseLong(from);
+				end = to.isEmpty() ? size - 1 : Math.min(Long.parseLong(to), size - 1);
+			}
+			
+			if (start >= size || start > end) {
+				return null;
+			}
+			return new long[] { start, end };
+		} catch (NumberFormatException e) {
+			return new long[0];
+		}
+	}
+}
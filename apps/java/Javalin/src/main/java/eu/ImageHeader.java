@@ -0,0 +1,228 @@
+package eu;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Format, size and bit depth of an image, read from its header only (BMP, PNG, GIF and
+ * JPEG). Nothing is decoded: at most the JPEG marker segments in front of the frame
+ * header are skipped.
+ */
+public class ImageHeader {
+	public final String format;
+	public final int width;
+	public final int height;
+	public final int bitDepth;
+
+
+	ImageHeader(String format, int width, int height, int bitDepth) {
+		this.format = format;
+		this.width = width;
+		this.height = height;
+		this.bitDepth = bitDepth;
+	}
+
+	public long getPixels() {
+		return (long) width * height;
+	}
+
+	@Override
+	public String toString() {
+		return format + " " + width + "x" + height + " " + bitDepth + " bpp";
+	}
+
+
+	/**
+	 * Reads the header from the start of the stream, never more than maxBytes of it. The
+	 * caller marks and resets the stream, the bytes read here still go to the broker.
+	 *
+	 * @throws IOException when the format is unknown or the header is broken or too far in
+	 */
+	public static ImageHeader read(InputStream in, int maxBytes) throws IOException {
+		DataInputStream data = new DataInputStream(new LimitedInputStream(in, maxBytes));
+		int b0 = data.read();
+		int b1 = data.read();
+
+		if (b0 == 0x42 && b1 == 0x4D) {
+			return readBmp(data);
+		}
+		if (b0 == 0x89 && b1 == 0x50) {
+			return readPng(data);
+		}
+		if (b0 == 0xFF && b1 == 0xD8) {
+			return readJpeg(data);
+		}
+		if (b0 == 0x47 && b1 == 0x49) {
+			return readGif(data);
+		}
+
+		throw new IOException("Unknown image format");
+	}
+
+
+	// BITMAPFILEHEADER then BITMAPCOREHEADER (12 bytes) or BITMAPINFOHEADER and later, little endian
+	private static ImageHeader readBmp(DataInputStream data) throws IOException {
+		data.skipNBytes(12);
+		int dibSize = readIntLE(data);
+
+		int width;
+		int height;
+		if (dibSize == 12) {
+			width = readShortLE(data);
+			height = readShortLE(data);
+		} else if (dibSize >= 40) {
+			width = readIntLE(data);
+			// negative height: rows stored top-down
+			height = Math.abs(readIntLE(data));
+		} else {
+			throw new IOException("Invalid BMP header size: " + dibSize);
+		}
+
+		int planes = readShortLE(data);
+		int bitDepth = readShortLE(data);
+		if (planes != 1 || bitDepth == 0) {
+			throw new IOException("Invalid BMP header: planes " + planes + ", bit depth " + bitDepth);
+		}
+
+		return checked("bmp", width, height, bitDepth);
+	}
+
+	// signature, then IHDR is always the first chunk
+	private static ImageHeader readPng(DataInputStream data) throws IOException {
+		data.skipNBytes(6);
+		int length = data.readInt();
+		int type = data.readInt();
+		if (length != 13 || type != 0x49484452) {
+			throw new IOException("PNG does not start with IHDR");
+		}
+
+		int width = data.readInt();
+		int height = data.readInt();
+		int bitDepth = data.readUnsignedByte();
+		int colorType = data.readUnsignedByte();
+
+		int channels = switch (colorType) {
+			case 0, 3 -> 1;
+			case 4 -> 2;
+			case 2 -> 3;
+			case 6 -> 4;
+			default -> throw new IOException("Invalid PNG color type: " + colorType);
+		};
+
+		return checked("png", width, height, bitDepth * channels);
+	}
+
+	// logical screen descriptor; the depth is the size of the global color table
+	private static ImageHeader readGif(DataInputStream data) throws IOException {
+		data.skipNBytes(4);
+		int width = readShortLE(data);
+		int height = readShortLE(data);
+		int packed = data.readUnsignedByte();
+
+		return checked("gif", width, height, (packed & 0x07) + 1);
+	}
+
+	// walks the marker segments up to the first SOFn frame header
+	private static ImageHeader readJpeg(DataInputStream data) throws IOException {
+		while (true) {
+			int marker = data.readUnsignedByte();
+			if (marker != 0xFF) {
+				throw new IOException("Invalid JPEG marker");
+			}
+			// fill bytes
+			while (marker == 0xFF) {
+				marker = data.readUnsignedByte();
+			}
+
+			// markers without a length
+			if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD8)) {
+				continue;
+			}
+			if (marker == 0xD9 || marker == 0xDA) {
+				throw new IOException("JPEG has no frame header");
+			}
+
+			int length = data.readUnsignedShort();
+			if (length < 2) {
+				throw new IOException("Invalid JPEG segment length");
+			}
+
+			// SOF0..SOF15 except DHT (C4), JPG (C8) and DAC (CC)
+			if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+				int precision = data.readUnsignedByte();
+				int height = data.readUnsignedShort();
+				int width = data.readUnsignedShort();
+				int components = data.readUnsignedByte();
+
+				return checked("jpg", width, height, precision * components);
+			}
+
+			data.skipNBytes(length - 2);
+		}
+	}
+
+
+	private static ImageHeader checked(String format, int width, int height, int bitDepth) throws IOException {
+		if (width <= 0 || height <= 0) {
+			throw new IOException("Invalid " + format + " size: " + width + "x" + height);
+		}
+		return new ImageHeader(format, width, height, bitDepth);
+	}
+
+	// ends the stream after the limit, a header further in is treated as missing
+	private static class LimitedInputStream extends FilterInputStream {
+		private long left;
+
+		LimitedInputStream(InputStream in, long limit) {
+			super(in);
+			this.left = limit;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (left <= 0) {
+				return -1;
+			}
+			int b = super.read();
+			if (b >= 0) {
+				left--;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (left <= 0) {
+				return -1;
+			}
+			int read = super.read(buffer, offset, (int) Math.min(length, left));
+			if (read > 0) {
+				left -= read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(Math.min(n, left));
+			left -= skipped;
+			return skipped;
+		}
+	}
+
+	private static int readIntLE(DataInputStream data) throws IOException {
+		return Integer.reverseBytes(data.readInt());
+	}
+
+	private static int readShortLE(DataInputStream data) throws IOException {
+		int low = data.read();
+		int high = data.read();
+		if ((low | high) < 0) {
+			throw new EOFException();
+		}
+		return low | (high << 8);
+	}
+}
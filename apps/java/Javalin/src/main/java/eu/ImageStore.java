@@ -0,0 +1,227 @@
+package eu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * Read side of the images table written by the consumers.
+ * 
+ * A blob is either in the row (image_original / image_zoomed) or, with the file storage
+ * backend, in the content-addressed directory BLOB_STORE_DIR (the row keeps the relative
+ * path). Both are read by ranges: one streamed SUBSTRING() query from MySQL,
+ * memory-mapped windows from files. The original of an upload is stored in MySQL once,
+ * in its first row; the rows of the other zoom levels find it by content_hash.
+ */
+public class ImageStore {
+	static final String DB_URL = "jdbc:mysql://localhost:3306/blobstore?useSSL=false&allowPublicKeyRetrieval=true";
+	static final String DB_USER = "stud";
+	static final String DB_PASS = "stud123";
+	static final String DB_POOL_SIZE = "4";
+	static final String BLOB_STORE_DIR = "/data/blobs";
+	
+	// bytes copied from a MySQL stream and mapped from a file at once
+	private static final int DB_CHUNK = 64 * 1024;
+	private static final long MAP_WINDOW = 64L * 1024 * 1024;
+	
+	private static HikariDataSource dataSource;
+	
+	
+	public enum Kind {
+		ORIGINAL("image_original", "content_hash", "original_size", "original_path"),
+		ZOOMED("image_zoomed", "zoomed_hash", "zoomed_size", "zoomed_path");
+		
+		final String blobColumn;
+		final String hashColumn;
+		final String sizeColumn;
+		final String pathColumn;
+		
+		Kind(String blobColumn, String hashColumn, String sizeColumn, String pathColumn) {
+			this.blobColumn = blobColumn;
+			this.hashColumn = hashColumn;
+			this.sizeColumn = sizeColumn;
+			this.pathColumn = pathColumn;
+		}
+	}
+	
+	public static class ImageInfo {
+		final long id;
+		final Kind kind;
+		final String hash;
+		final long size;
+		final String typeImage;
+		final String path;
+		
+		ImageInfo(long id, Kind kind, String hash, long size, String typeImage, String path) {
+			this.id = id;
+			this.kind = kind;
+			this.hash = hash;
+			this.size = size;
+			this.typeImage = typeImage;
+			this.path = path;
+		}
+	}
+	
+	
+	/**
+	 * Size, hash and location of one blob, null when the row or the blob does not exist.
+	 * Rows written before the sizes were stored get their length from MySQL.
+	 */
+	public static ImageInfo find(long id, Kind kind) throws SQLException {
+		String sql = "SELECT " + kind.hashColumn + ", COALESCE(" + kind.sizeColumn + ", LENGTH(" + kind.blobColumn + ")), "
+				+ "type_image, " + kind.pathColumn + ", " + kind.blobColumn + " IS NULL FROM images WHERE id = ?";
+		
+		try (Connection conn = getDataSource().getConnection();
+				PreparedStatement ps = conn.prepareStatement(sql)) {
+			ps.setLong(1, id);
+			
+			try (ResultSet rs = ps.executeQuery()) {
+				if (!rs.next()) {
+					return null;
+				}
+				
+				long size = rs.getLong(2);
+				if (rs.wasNull()) {
+					return null;
+				}
+				
+				String hash = rs.getString(1);
+				String path = rs.getString(4);
+				long blobRow = id;
+				if (path == null && rs.getBoolean(5)) {
+					// not stored in this row: the original is read from the row that has it
+					Long holder = kind == Kind.ORIGINAL && hash != null ? findOriginalRow(conn, hash) : null;
+					if (holder == null) {
+						return null;
+					}
+					blobRow = holder;
+				}
+				
+				return new ImageInfo(blobRow, kind, hash, size, rs.getString(3), path);
+			}
+		}
+	}
+	
+	/**
+	 * Writes bytes [offset, offset + length) of the blob to the output.
+	 */
+	public static void copyRange(ImageInfo info, long offset, long length, OutputStream out) throws SQLException, IOException {
+		if (info.path != null) {
+			copyFileRange(info, offset, length, out);
+		} else {
+			copyDbRange(info, offset, length, out);
+		}
+	}
+	
+	/**
+	 * Whole blob in memory, used only for images small enough for the hot cache.
+	 */
+	public static byte[] readAll(ImageInfo info) throws SQLException, IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream((int) info.size);
+		copyRange(info, 0, info.size, out);
+		return out.toByteArray();
+	}
+	
+	
+	private static Long findOriginalRow(Connection conn, String contentHash) throws SQLException {
+		String sql = "SELECT id FROM images WHERE content_hash = ? AND image_original IS NOT NULL ORDER BY id LIMIT 1";
+		
+		try (PreparedStatement ps = conn.prepareStatement(sql)) {
+			ps.setString(1, contentHash);
+			
+			try (ResultSet rs = ps.executeQuery()) {
+				return rs.next() ? rs.getLong(1) : null;
+			}
+		}
+	}
+	
+	private static void copyFileRange(ImageInfo info, long offset, long length, OutputStream out) throws IOException {
+		Path file = Paths.get(System.getenv().getOrDefault("BLOB_STORE_DIR", BLOB_STORE_DIR)).resolve(info.path);
+		WritableByteChannel target = Channels.newChannel(out);
+		
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long position = offset;
+			long end = offset + length;
+			
+			while (position < end) {
+				long window = Math.min(MAP_WINDOW, end - position);
+				MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, window);
+				
+				while (mapped.hasRemaining()) {
+					target.write(mapped);
+				}
+				position += window;
+			}
+		}
+	}
+	
+	// one query for the whole range: a SUBSTRING per chunk made MySQL walk the blob from
+	// its start every time, quadratic on a large image
+	private static void copyDbRange(ImageInfo info, long offset, long length, OutputStream out) throws SQLException, IOException {
+		// SUBSTRING is 1-based
+		String sql = "SELECT SUBSTRING(" + info.kind.blobColumn + ", ?, ?) FROM images WHERE id = ?";
+		
+		try (Connection conn = getDataSource().getConnection();
+				PreparedStatement ps = conn.prepareStatement(sql)) {
+			// streamed result set, rows are not buffered up front
+			ps.setFetchSize(Integer.MIN_VALUE);
+			ps.setLong(1, offset + 1);
+			ps.setLong(2, length);
+			ps.setLong(3, info.id);
+			
+			try (ResultSet rs = ps.executeQuery()) {
+				if (!rs.next()) {
+					throw new IOException("Image " + info.id + " disappeared while reading");
+				}
+				
+				long copied = 0;
+				try (InputStream in = rs.getBinaryStream(1)) {
+					if (in != null) {
+						byte[] buffer = new byte[DB_CHUNK];
+						int read;
+						while (copied < length && (read = in.read(buffer)) > 0) {
+							out.write(buffer, 0, read);
+							copied += read;
+						}
+					}
+				}
+				if (copied < length) {
+					throw new IOException("Image " + info.id + " is shorter than expected");
+				}
+			}
+		}
+	}
+	
+	private static synchronized HikariDataSource getDataSource() {
+		if (dataSource == null) {
+		    HikariConfig config = new HikariConfig();
+		    config.setJdbcUrl(System.getenv().getOrDefault("DB_URL", DB_URL));
+		    config.setUsername(System.getenv().getOrDefault("DB_USER", DB_USER));
+		    config.setPassword(System.getenv().getOrDefault("DB_PASS", DB_PASS));
+		    config.setPoolName("javalin-db");
+		    config.setMaximumPoolSize(Integer.parseInt(System.getenv().getOrDefault("DB_POOL_SIZE", DB_POOL_SIZE)));
+		    config.setMinimumIdle(1);
+		    config.addDataSourceProperty("cachePrepStmts", "true");
+		    config.addDataSourceProperty("useServerPrepStmts", "true");
+		    
+		    dataSource = new HikariDataSource(config);
+		}
+		
+		return dataSource;
+	}
+}
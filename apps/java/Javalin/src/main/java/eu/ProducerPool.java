@@ -0,0 +1,246 @@
+package eu;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.CompletionListener;
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+/**
+ * Bounded pool of session + producer pairs on the shared broker connection.
+ * 
+ * An upload borrows a pair, sends and gives it back; a pair that failed (or whose session
+ * is closed) is thrown away and a new one is created on the next borrow. With
+ * BROKER_ASYNC_SEND=true the send returns as soon as the message is written and the
+ * broker receipt is handled by a completion listener. The client already has its uploadId
+ * then, so a rejected upload gives back its admission slot and the WebSocket clients
+ * waiting for it get an UPLOAD_FAILED event instead of the 503.
+ */
+public class ProducerPool {
+	static final String PRODUCER_POOL_SIZE = "8";
+	static final String PRODUCER_BORROW_TIMEOUT_MS = "10000";
+	static final String BROKER_ASYNC_SEND = "false";
+	// "auto": hand the send to a platform thread when the caller is virtual and the JVM
+	// still pins on synchronized (before 24); "true" / "false" force it
+	static final String BROKER_SEND_OFFLOAD = "auto";
+	
+	private final Connection conn;
+	private final Destination destination;
+	private final int maxSize;
+	private final long borrowTimeoutMs;
+	private final boolean asyncSend;
+	private final boolean offload;
+	private final ExecutorService sendThreads;
+	
+	private final BlockingQueue<PooledProducer> idle;
+	private final AtomicInteger created = new AtomicInteger();
+	private final AtomicInteger sendThreadIds = new AtomicInteger();
+	
+	
+	static class PooledProducer {
+		final Session session;
+		final MessageProducer producer;
+		
+		PooledProducer(Session session, MessageProducer producer) {
+			this.session = session;
+			this.producer = producer;
+		}
+	}
+	
+	
+	public ProducerPool(Connection conn, String destinationName, boolean topic) throws JMSException {
+		this.conn = conn;
+		this.maxSize = Integer.parseInt(System.getenv().getOrDefault("PRODUCER_POOL_SIZE", PRODUCER_POOL_SIZE));
+		this.borrowTimeoutMs = Long.parseLong(System.getenv().getOrDefault("PRODUCER_BORROW_TIMEOUT_MS", PRODUCER_BORROW_TIMEOUT_MS));
+		this.asyncSend = Boolean.parseBoolean(System.getenv().getOrDefault("BROKER_ASYNC_SEND", BROKER_ASYNC_SEND));
+		this.idle = new ArrayBlockingQueue<>(maxSize);
+		
+		// the Artemis client sends under synchronized blocks; a virtual thread blocked on
+		// the socket there would hold its carrier, so the send runs on one of these
+		// (one per pooled session, a send never waits for a thread as well)
+		String offloadMode = System.getenv().getOrDefault("BROKER_SEND_OFFLOAD", BROKER_SEND_OFFLOAD);
+		this.offload = "auto".equalsIgnoreCase(offloadMode) ? Runtime.version().feature() < 24 : Boolean.parseBoolean(offloadMode);
+		this.sendThreads = offload ? Executors.newFixedThreadPool(maxSize, task -> {
+			Thread thread = new Thread(task, "broker-send-" + sendThreadIds.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}) : null;
+		
+		// destinations are plain names, any session can create the same one
+		Session session = conn.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		try {
+			this.destination = topic ? session.createTopic(destinationName) : session.createQueue(destinationName);
+		} finally {
+			session.close();
+		}
+		
+		System.out.println("Producer pool for " + destination + ": " + maxSize + " sessions, async send " + asyncSend 
+				+ ", send offload " + offload);
+	}
+	
+	public Destination getDestination() {
+		return destination;
+	}
+	
+	/**
+	 * Builds the message on a pooled session and sends it persistent. The builder runs on
+	 * the session that sends, as JMS requires.
+	 */
+	public void send(MessageBuilder builder, String uploadId) throws JMSException, InterruptedException {
+		if (sendThreads == null || !Thread.currentThread().isVirtual()) {
+			sendNow(builder, uploadId);
+			return;
+		}
+		
+		// the virtual thread parks on the future, its carrier is free for other requests
+		Future<?> sent = sendThreads.submit(() -> {
+			sendNow(builder, uploadId);
+			return null;
+		});
+		
+		try {
+			sent.get();
+		} catch (InterruptedException e) {
+			sent.cancel(true);
+			throw e;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof JMSException jmsException) {
+				throw jmsException;
+			}
+			JMSException failure = new JMSException("Broker send failed: " + e.getCause());
+			if (e.getCause() instanceof Exception cause) {
+				failure.setLinkedException(cause);
+			}
+			throw failure;
+		}
+	}
+	
+	private void sendNow(MessageBuilder builder, String uploadId) throws JMSException, InterruptedException {
+		PooledProducer pooled = borrow();
+		boolean healthy = false;
+		
+		try {
+			Message message = builder.build(pooled.session);
+			
+			if (asyncSend) {
+				pooled.producer.send(message, new CompletionListener() {
+					@Override
+					public void onCompletion(Message sent) {
+						System.out.println("Broker confirmed upload: " + uploadId);
+					}
+					
+					@Override
+					public void onException(Message sent, Exception e) {
+						System.err.println("Broker rejected upload " + uploadId + ": " + e.getMessage());
+						Metrics.increment("broker_send_failures_total", "mode=\"async\"");
+						AdmissionControl.release(uploadId);
+						Websocket.alertUserThatUploadFailed(uploadId);
+					}
+				});
+			} else {
+				pooled.producer.send(message);
+			}
+			
+			System.out.println("Message ID: " + message.getJMSMessageID());
+			healthy = true;
+		} finally {
+			release(pooled, healthy);
+		}
+	}
+	
+	
+	@FunctionalInterface
+	public interface MessageBuilder {
+		Message build(Session session) throws JMSException;
+	}
+	
+	
+	private PooledProducer borrow() throws JMSException, InterruptedException {
+		while (true) {
+			PooledProducer pooled = idle.poll();
+			
+			if (pooled == null) {
+				// grow up to maxSize, then wait for one to come back
+				if (created.incrementAndGet() <= maxSize) {
+					try {
+						return create();
+					} catch (JMSException | RuntimeException e) {
+						created.decrementAndGet();
+						throw e;
+					}
+				}
+				created.decrementAndGet();
+				
+				pooled = idle.poll(borrowTimeoutMs, TimeUnit.MILLISECONDS);
+				if (pooled == null) {
+					throw new JMSException("No broker session available after " + borrowTimeoutMs + " ms");
+				}
+			}
+			
+			if (isHealthy(pooled)) {
+				return pooled;
+			}
+			discard(pooled);
+		}
+	}
+	
+	private void release(PooledProducer pooled, boolean healthy) {
+		if (healthy && idle.offer(pooled)) {
+			return;
+		}
+		discard(pooled);
+	}
+	
+	private PooledProducer create() throws JMSException {
+		Session session = conn.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		
+		try {
+			MessageProducer producer = session.createProducer(destination);
+			producer.setDeliveryMode(DeliveryMode.PERSISTENT);
+			
+			return new PooledProducer(session, producer);
+		} catch (JMSException e) {
+			session.close();
+			throw e;
+		}
+	}
+	
+	// a closed session throws on any call
+	private boolean isHealthy(PooledProducer pooled) {
+		try {
+			pooled.session.getAcknowledgeMode();
+			pooled.producer.getDeliveryMode();
+			return true;
+		} catch (JMSException e) {
+			return false;
+		}
+	}
+	
+	private void discard(PooledProducer pooled) {
+		created.decrementAndGet();
+		
+		// producer before its session
+		try {
+			pooled.producer.close();
+		} catch (JMSException e) {
+			// already broken
+		}
+		try {
+			pooled.session.close();
+		} catch (JMSException e) {
+			// already broken
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package eu;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+
+/**
+ * Receives the completion events the consumers publish on image.status and forwards
+ * them to the WebSocket clients. Events published while Javalin is down wait in the
+ * broker and are delivered when it comes back.
+ */
+public class StatusSubscriber {
+	static final String STATUS_QUEUE = "image.status";
+	
+	private static Session session;
+	
+	
+	public static void start(Connection conn) throws JMSException {
+		session = conn.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		MessageConsumer consumer = session.createConsumer(session.createQueue(StatusSubscriber.STATUS_QUEUE));
+		
+		consumer.setMessageListener(message -> {
+			try {
+				String uploadId = message.getStringProperty("uploadId");
+				long rowId = message.getLongProperty("rowId");
+				double zoom = message.getDoubleProperty("zoom");
+				
+				System.out.println("Completion event received, uploadId: " + uploadId + ", rowId: " + rowId + ", zoom: " + zoom);
+				
+				// the client asks for it right after the notification
+				AdmissionControl.completed(uploadId);
+				HotImageCache.prefetch(rowId);
+				Websocket.alertUserThatImageIsReady(uploadId, rowId, zoom);
+			} catch (JMSException | RuntimeException e) {
+				System.err.println("Invalid completion event: " + e.getMessage());
+				e.printStackTrace();
+			}
+		});
+		
+		System.out.println("Listening for completion events on: " + StatusSubscriber.STATUS_QUEUE);
+	}
+}
@@ -1,14 +1,48 @@
 package eu;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import io.javalin.websocket.WsConfig;
 import io.javalin.websocket.WsContext;
 
+/**
+ * Completion notifications (IMAGE_READY per level, or UPLOAD_FAILED), sent only to the
+ * clients that wait for that upload.
+ * 
+ * A client subscribes with ?uploadId=... on the URL or by sending the uploadId (plain, as
+ * a JSON string or {"subscribe": "..."}). The last events are kept for a while so a
+ * client that subscribes after its image was ready (e.g. a cache hit) still gets it.
+ */
 public class Websocket {
-	private static Map<String, WsContext> websocketSession = new ConcurrentHashMap<>();
+	static final String WS_RECENT_EVENTS = "1000";
+	
+	private static final Pattern SUBSCRIBE_JSON = Pattern.compile("\"subscribe\"\\s*:\\s*\"([^\"]+)\"");
+	private static final int recentEventsMax = 
+			Integer.parseInt(System.getenv().getOrDefault("WS_RECENT_EVENTS", WS_RECENT_EVENTS));
+	
+	private static Map<String, WsOutbox> websocketSession = new ConcurrentHashMap<>();
+	
+	// uploadId -> sessions waiting for it, and sessionId -> its uploadIds (for cleanup)
+	private static Map<String, Set<String>> subscribers = new ConcurrentHashMap<>();
+	private static Map<String, Set<String>> subscriptions = new ConcurrentHashMap<>();
+	
+	// an upload with several zoom levels has one event per level
+	private static final Map<String, List<String>> recentEvents = new LinkedHashMap<>(256, 0.75f, false) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+			return size() > recentEventsMax;
+		}
+	};
 	
 	
 	public static void notifications(WsConfig ws) {
@@ -16,43 +50,140 @@ public class Websocket {
 			ctx.session.setIdleTimeout(Duration.ofMinutes(10)); // keep only ten minutes the session
 			
 			String sessionId = ctx.sessionId().toString();
-			websocketSession.put(sessionId, ctx);
+			websocketSession.put(sessionId, new WsOutbox(ctx));
 			
-			System.out.println("WebSocket connected:" + sessionId);
+			String uploadId = ctx.queryParam("uploadId");
+			if (uploadId != null && !uploadId.isBlank()) {
+				subscribe(sessionId, uploadId);
+			}
+			
+			System.out.println("WebSocket connected:" + sessionId + (uploadId != null ? " for uploadId " + uploadId : ""));
+		});
+		
+		ws.onMessage(ctx -> {
+			String uploadId = parseSubscription(ctx.message());
+			if (uploadId != null) {
+				subscribe(ctx.sessionId(), uploadId);
+			}
 		});
 		
 		ws.onClose(ctx -> {
 			String sessionId = ctx.sessionId().toString();
-			websocketSession.remove(sessionId);
+			unsubscribeAll(sessionId);
 			System.out.println("WebScoket disconnected: " + sessionId);
 		});
 		
 		ws.onError(ctx -> {
 			System.err.println("WebSocket error: " + ctx.error());
+			unsubscribeAll(ctx.sessionId());
 		});
 	}
 	
 	
-	public static void alertUserThatImageIsReady(String uploadId, long rowId) {
+	public static void alertUserThatImageIsReady(String uploadId, long rowId, double zoom) {
 
 		String json = """
 		{
 				"rowId": %d,
+				"zoom": %s,
 				"status": "IMAGE_READY"
 		}	
-		""".formatted(rowId);
+		""".formatted(rowId, zoom);
 
-		try {
-			// for demonstration, let's sent as broadcast ... 
-			websocketSession.forEach((key, ctx) -> {
-				ctx.send(json);
-			});
+		publish(uploadId, json);
+	}
+	
+	/**
+	 * The upload was accepted but never reached the broker (async send), no level will come.
+	 */
+	public static void alertUserThatUploadFailed(String uploadId) {
+
+		String json = """
+		{
+				"status": "UPLOAD_FAILED",
+				"error": "The image could not be queued for processing"
+		}	
+		""";
+
+		publish(uploadId, json);
+	}
+	
+	
+	private static void publish(String uploadId, String json) {
+		synchronized (recentEvents) {
+			recentEvents.computeIfAbsent(uploadId, key -> new ArrayList<>(1)).add(json);
+		}
+		
+		Set<String> sessions = subscribers.get(uploadId);
+		if (sessions == null || sessions.isEmpty()) {
+			System.out.println("No WebSocket waiting for uploadId: " + uploadId + ", event kept for a late subscriber");
+			return;
+		}
+		
+		for (String sessionId : sessions) {
+			WsOutbox outbox = websocketSession.get(sessionId);
 			
-		} catch ( Exception e) {
-			e.printStackTrace();
-			System.err.println("Failed to send broadcast ws for uploadId: " + uploadId);
+			if (outbox == null || !outbox.offer(json)) {
+				unsubscribeAll(sessionId);
+			}
+		}
+	}
+	
+	private static void subscribe(String sessionId, String uploadId) {
+		WsOutbox outbox = websocketSession.get(sessionId);
+		if (outbox == null) {
+			return;
+		}
+		
+		subscribers.computeIfAbsent(uploadId, key -> ConcurrentHashMap.newKeySet()).add(sessionId);
+		subscriptions.computeIfAbsent(sessionId, key -> ConcurrentHashMap.newKeySet()).add(uploadId);
+		
+		// the image may already be ready
+		List<String> events;
+		synchronized (recentEvents) {
+			events = recentEvents.containsKey(uploadId) ? List.copyOf(recentEvents.get(uploadId)) : List.of();
+		}
+		for (String event : events) {
+			outbox.offer(event);
+		}
+	}
+	
+	private static void unsubscribeAll(String sessionId) {
+		WsOutbox outbox = websocketSession.remove(sessionId);
+		if (outbox != null) {
+			outbox.close();
+		}
+		
+		Set<String> uploadIds = subscriptions.remove(sessionId);
+		if (uploadIds == null) {
+			return;
+		}
+		
+		for (String uploadId : uploadIds) {
+			subscribers.computeIfPresent(uploadId, (key, sessions) -> {
+				sessions.remove(sessionId);
+				return sessions.isEmpty() ? null : sessions;
+			});
+		}
+	}
+	
+	private static String parseSubscription(String message) {
+		if (message == null) {
+			return null;
+		}
+		
+		String text = message.trim();
+		Matcher matcher = SUBSCRIBE_JSON.matcher(text);
+		if (matcher.find()) {
+			return matcher.group(1);
+		}
+		
+		// JSON.stringify of a plain string
+		if (text.length() > 1 && text.startsWith("\"") && text.endsWith("\"")) {
+			text = text.substring(1, text.length() - 1);
 		}
 		
+		return text.isEmpty() || text.startsWith("{") ? null : text;
 	}
 	
 }
@@ -0,0 +1,95 @@
+package eu;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+import io.javalin.websocket.WsCloseStatus;
+import io.javalin.websocket.WsContext;
+
+/**
+ * Outbound queue of one WebSocket session.
+ * 
+ * Frames are written asynchronously, one at a time: the next one starts from the write
+ * callback of the previous. The caller never blocks on a slow client; a client with more
+ * than WS_MAX_QUEUED frames waiting is disconnected instead of growing the queue.
+ */
+public class WsOutbox {
+	static final String WS_MAX_QUEUED = "64";
+	
+	private static final int maxQueued = Integer.parseInt(System.getenv().getOrDefault("WS_MAX_QUEUED", WS_MAX_QUEUED));
+	
+	private final WsContext ctx;
+	private final Queue<String> queue = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pending = new AtomicInteger();
+	private final AtomicBoolean sending = new AtomicBoolean();
+	private volatile boolean closed;
+	
+	
+	public WsOutbox(WsContext ctx) {
+		this.ctx = ctx;
+	}
+	
+	/**
+	 * Queues a frame, returns false when the client was dropped for being too slow.
+	 */
+	public boolean offer(String message) {
+		if (closed) {
+			return false;
+		}
+		
+		if (pending.incrementAndGet() > maxQueued) {
+			pending.decrementAndGet();
+			System.err.println("WebSocket " + ctx.sessionId() + " is too slow (" + maxQueued + " frames waiting), closing it");
+			close();
+			ctx.closeSession(WsCloseStatus.TRY_AGAIN_LATER, "Client too slow");
+			return false;
+		}
+		
+		queue.add(message);
+		drain();
+		return true;
+	}
+	
+	public void close() {
+		closed = true;
+		queue.clear();
+	}
+	
+	
+	private void drain() {
+		// only one write in flight per session
+		while (!closed && sending.compareAndSet(false, true)) {
+			String next = queue.poll();
+			
+			if (next == null) {
+				sending.set(false);
+				// a frame may have been added between poll() and set(false)
+				if (queue.isEmpty()) {
+					return;
+				}
+				continue;
+			}
+			
+			ctx.session.getRemote().sendString(next, new WriteCallback() {
+				@Override
+				public void writeSuccess() {
+					pending.decrementAndGet();
+					sending.set(false);
+					drain();
+				}
+				
+				@Override
+				public void writeFailed(Throwable error) {
+					System.err.println("WebSocket " + ctx.sessionId() + " write failed: " + error.getMessage());
+					close();
+					sending.set(false);
+				}
+			});
+			return;
+		}
+	}
+}
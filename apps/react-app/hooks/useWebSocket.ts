@@ -5,6 +5,7 @@ export const useWebSocket = (url: string) => {
   const [lastMessage, setLastMessage] = useState<{
     rowId: number;
     status: string;
+    error?: string;
   } | null>(null);
   const wsRef = useRef<WebSocket | null>(null);
   const reconnectTimeoutRef = useRef<NodeJS.Timeout | null>(null);
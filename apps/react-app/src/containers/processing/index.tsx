@@ -15,7 +15,12 @@ const Processing = () => {
   const uploadIdParam = searchParams.get("uploadId");
   const reloadTriggerRef = useRef(0);
   // Only connect WebSocket when we have an uploadId (meaning user is waiting for results)
-  const { isConnected, lastMessage } = useWebSocket(urlWs);
+  // the server sends the notification only to the sessions subscribed to this uploadId
+  const { isConnected, lastMessage } = useWebSocket(
+    uploadIdParam
+      ? `${urlWs}?uploadId=${encodeURIComponent(uploadIdParam)}`
+      : urlWs
+  );
 
   useEffect(() => {
     if (lastMessage?.status === "IMAGE_READY") {
@@ -59,6 +64,11 @@ const Processing = () => {
                     id={lastMessage.rowId}
                   />
                 </>
+              ) : lastMessage && lastMessage.status === "UPLOAD_FAILED" ? (
+                <div className="alert alert-danger" role="alert">
+                  <i className="bi bi-x-circle me-2"></i>
+                  {lastMessage.error}. Please upload the image again.
+                </div>
               ) : (
                 <>
                   <div className="alert alert-warning" role="alert">
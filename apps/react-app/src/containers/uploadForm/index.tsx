@@ -83,6 +83,12 @@ const UploadForm = () => {
         router.push("/upload/result?uploadId=" + response.data);
       })
       .catch((error) => {
+        // the server is busy, it says when to try again
+        if (error.response?.status === 429) {
+          const retryAfter = error.response.headers["retry-after"];
+          setError("Too many images in processing, please retry in " + retryAfter + " seconds.");
+          return;
+        }
         alert("Error sending the image. Check the console for details.");
         console.error("Error sending the image:", error);
       });